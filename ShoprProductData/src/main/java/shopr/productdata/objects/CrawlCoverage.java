@@ -0,0 +1,15 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/14/2016.
+ *
+ * @author Neil Allison
+ */
+public enum CrawlCoverage
+{
+    NOT_STARTED,
+    COMPLETE,
+    PAGE_LIMIT,
+    PREEMPTED,
+    ABANDONED
+}
@@ -0,0 +1,91 @@
+package shopr.productdata.objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Neil on 10/30/2016.
+ *
+ * @author Neil Allison
+ */
+@SuppressWarnings("unused")
+public class DownloadCheckpoint
+{
+    private long bytesReceived;
+    private long contentLength;
+    private String eTag;
+    private String lastModified;
+    private List<DownloadSegment> segments;
+
+    public DownloadCheckpoint()
+    {
+        contentLength = -1;
+        segments = new ArrayList<>();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived)
+    {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    public void setContentLength(long contentLength)
+    {
+        this.contentLength = contentLength;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    public void setETag(String eTag)
+    {
+        this.eTag = eTag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified)
+    {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Byte ranges of a segmented download. Empty for a single-stream download, which only tracks bytesReceived.
+     */
+    public List<DownloadSegment> getSegments()
+    {
+        return segments;
+    }
+
+    public void setSegments(List<DownloadSegment> segments)
+    {
+        this.segments = segments;
+    }
+
+    public boolean isSegmented()
+    {
+        return !segments.isEmpty();
+    }
+
+    /**
+     * The validator sent back in If-Range. A strong ETag is preferred over the Last-Modified date.
+     */
+    public String getValidator()
+    {
+        return eTag != null ? eTag : lastModified;
+    }
+}
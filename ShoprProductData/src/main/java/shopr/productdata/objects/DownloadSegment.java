@@ -0,0 +1,63 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/1/2016.
+ *
+ * @author Neil Allison
+ */
+@SuppressWarnings("unused")
+public class DownloadSegment
+{
+    private long start;
+    private long end;
+    private long bytesReceived;
+
+    public DownloadSegment(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public void setStart(long start)
+    {
+        this.start = start;
+    }
+
+    /**
+     * Inclusive, matching the last-byte-pos of a Range header.
+     */
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public void setEnd(long end)
+    {
+        this.end = end;
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived)
+    {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public long getLength()
+    {
+        return end - start + 1;
+    }
+
+    public boolean isComplete()
+    {
+        return bytesReceived >= getLength();
+    }
+}
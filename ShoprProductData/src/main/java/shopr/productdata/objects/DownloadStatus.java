@@ -0,0 +1,13 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/3/2016.
+ *
+ * @author Neil Allison
+ */
+public enum DownloadStatus
+{
+    COMPLETE,
+    NOT_MODIFIED,
+    FAILED
+}
@@ -0,0 +1,13 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/15/2016.
+ *
+ * @author Neil Allison
+ */
+public enum HttpCacheMode
+{
+    OFF,
+    RECORD,
+    REPLAY
+}
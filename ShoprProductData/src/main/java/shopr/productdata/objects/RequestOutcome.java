@@ -0,0 +1,14 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/10/2016.
+ *
+ * @author Neil Allison
+ */
+public enum RequestOutcome
+{
+    SUCCESS,
+    ERROR,
+    THROTTLED,
+    TIMEOUT
+}
@@ -0,0 +1,94 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * What sanitizing one data file produced.
+ *
+ * @author Neil Allison
+ */
+@SuppressWarnings("unused")
+public class SanitizationResult
+{
+    private String filename;
+    private SanitizationStatus status;
+    private long rows;
+    private long elapsedMillis;
+    private String message;
+
+    public SanitizationResult(String filename, SanitizationStatus status, long rows, String message)
+    {
+        this.filename = filename;
+        this.status = status;
+        this.rows = rows;
+        this.message = message;
+    }
+
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    public void setFilename(String filename)
+    {
+        this.filename = filename;
+    }
+
+    public SanitizationStatus getStatus()
+    {
+        return status;
+    }
+
+    public void setStatus(SanitizationStatus status)
+    {
+        this.status = status;
+    }
+
+    /**
+     * Products written to the cleaned files.
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    public void setRows(long rows)
+    {
+        this.rows = rows;
+    }
+
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    public void setElapsedMillis(long elapsedMillis)
+    {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Why the file was not sanitized completely, or null when it was.
+     */
+    public String getMessage()
+    {
+        return message;
+    }
+
+    public void setMessage(String message)
+    {
+        this.message = message;
+    }
+
+    public boolean isFailed()
+    {
+        return status == SanitizationStatus.FAILED;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %s, %d rows in %dms%s", filename, status, rows, elapsedMillis,
+                message == null ? "" : " (" + message + ")");
+    }
+}
@@ -0,0 +1,26 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * @author Neil Allison
+ */
+public enum SanitizationStatus
+{
+    /**
+     * Every product in the file was read.
+     */
+    COMPLETE,
+    /**
+     * The file is malformed part way through. Rows for the products before that point were written.
+     */
+    PARTIAL,
+    /**
+     * The file held no products and no cleaned files were written for it.
+     */
+    EMPTY,
+    /**
+     * The file could not be read or its cleaned files could not be written.
+     */
+    FAILED
+}
@@ -0,0 +1,55 @@
+package shopr.productdata.objects;
+
+/**
+ * Created by Neil on 11/3/2016.
+ *
+ * @author Neil Allison
+ */
+@SuppressWarnings("unused")
+public class ValidatorCacheEntry
+{
+    private String eTag;
+    private String lastModified;
+    private String contentHash;
+
+    public ValidatorCacheEntry()
+    {
+    }
+
+    public ValidatorCacheEntry(String eTag, String lastModified, String contentHash)
+    {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    public void setETag(String eTag)
+    {
+        this.eTag = eTag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified)
+    {
+        this.lastModified = lastModified;
+    }
+
+    public String getContentHash()
+    {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash)
+    {
+        this.contentHash = contentHash;
+    }
+}
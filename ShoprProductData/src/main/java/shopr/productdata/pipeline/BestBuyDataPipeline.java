@@ -1,32 +1,51 @@
 package shopr.productdata.pipeline;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.dataformat.csv.CsvMapper;
-import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import shopr.productdata.objects.DownloadStatus;
 import shopr.productdata.objects.PipelineName;
+import shopr.productdata.objects.SanitizationResult;
+import shopr.productdata.objects.SanitizationStatus;
 import shopr.productdata.objects.ShoprProductInfo;
 import shopr.productdata.objects.ShoprProductPrice;
+import shopr.productdata.objects.ValidatorCacheEntry;
 import shopr.productdata.utils.*;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -36,86 +55,168 @@ import java.util.zip.ZipInputStream;
  */
 public class BestBuyDataPipeline extends DataPipeline
 {
-    private static long totalBytesRead;
+    private static final String STREAMING_RETRIEVAL_MODE = "streaming";
+
+    private static final String PARTIAL_BULK_DATA_FILENAME = "products_BestBuy.json.zip.part";
+
+    private static final String RAW_ARCHIVE_PREFIX = "product-data/bestbuy/bulk-data/";
+
+    private static final String CHUNK_PART_SUFFIX = ".part";
+
+    private static final long MIN_CHUNK_BYTES = 4 * 1048576;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private static final JsonProjection PRODUCT_PROJECTION = JsonProjection.of("upc", "regularPrice", "salePrice", "name",
+            "image", "thumbnailImage", "shortDescription", "longDescription", "customerReviewCount",
+            "customerReviewAverage", "categoryPath[].name");
+
+    private volatile long totalBytesRead;
+
+    private final boolean streamingRetrieval;
+    private final int downloadSegments;
+    private final boolean deltaRetrievalEnabled;
+    private final boolean sanitizeDuringExtraction;
+    private final int sanitizeParallelism;
+    private final long splitThresholdBytes;
 
     public BestBuyDataPipeline(PipelineName pipelineName)
     {
         super(pipelineName);
         this.LOGGER = Logger.getLogger(this.getClass());
+        streamingRetrieval = STREAMING_RETRIEVAL_MODE.equalsIgnoreCase(
+                PropertiesLoader.getInstance().getProperty("bestbuy.retrieval.mode", "staged"));
+        downloadSegments = Integer.parseInt(PropertiesLoader.getInstance().getProperty("bestbuy.download.segments", "4"));
+        deltaRetrievalEnabled = Boolean.parseBoolean(PropertiesLoader.getInstance().getProperty("bestbuy.delta.enabled", "false"));
+        sanitizeDuringExtraction = Boolean.parseBoolean(PropertiesLoader.getInstance().getProperty(
+                "bestbuy.extract.sanitize", "false"));
+        sanitizeParallelism = Integer.parseInt(PropertiesLoader.getInstance().getProperty("bestbuy.sanitize.parallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        splitThresholdBytes = Long.parseLong(PropertiesLoader.getInstance().getProperty("bestbuy.sanitize.split.bytes",
+                "67108864"));
     }
 
     protected boolean executeDataRetrievalPhase(String destinationDir)
     {
         LOGGER.info("Phase 1: Starting BestBuy data retrieval");
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        HttpGet request = new HttpGet(Utils.getBestBuyProductsApiUrlString());
-        HttpResponse httpResponse;
-        try
+        BestBuyDeltaRetrieval deltaRetrieval = new BestBuyDeltaRetrieval();
+        if (deltaRetrievalEnabled)
         {
-            httpResponse = httpClient.execute(request);
+            String fullRetrievalReason = deltaRetrieval.getFullRetrievalReason();
+            if (fullRetrievalReason != null)
+            {
+                LOGGER.info("Using BestBuy bulk export: " + fullRetrievalReason);
+            }
+            else
+            {
+                switch (deltaRetrieval.retrieve(uncleanedDir))
+                {
+                    case RETRIEVED:
+                        deltaRetrieval.stageWatermark(false);
+                        return true;
+                    case UNCHANGED:
+                        LOGGER.info("No BestBuy products updated since the last successful run");
+                        deltaRetrieval.stageWatermark(false);
+                        sourceUnchanged = true;
+                        return true;
+                    case TOO_LARGE:
+                        LOGGER.info("Delta too large, falling back to the BestBuy bulk export");
+                        break;
+                    case FAILED:
+                        return false;
+                }
+            }
         }
-        catch (IOException e)
+
+        boolean retrieved = streamingRetrieval ? streamBulkDataToSanitizer() : downloadBulkData(destinationDir);
+        if (retrieved)
         {
-            LOGGER.error("Exception executing BestBuy bulk data download request", e);
-            return false;
+            deltaRetrieval.stageWatermark(true);
         }
+        return retrieved;
+    }
 
-        StatusLine statusLine = httpResponse.getStatusLine();
+    @Override
+    protected void onPipelineSuccess()
+    {
+        BestBuyDeltaRetrieval.commitWatermark();
+    }
 
-        if (statusLine.getStatusCode() != 200)
+    private boolean downloadBulkData(String destinationDir)
+    {
+        String bulkDataUrl = Utils.getBestBuyProductsApiUrlString();
+        ValidatorCacheEntry previousValidators = ValidatorCache.getInstance().get(bulkDataUrl);
+        File partialFile = new File(destinationDir, PARTIAL_BULK_DATA_FILENAME);
+        File bulkDataFile = new File(destinationDir, createCompressedProductDataFilename());
+        RawArchiveSink rawArchive = Constants.ENABLE_BESTBUY_UNCLEANED_S3_UPLOAD
+                ? RawArchiveSink.open(RAW_ARCHIVE_PREFIX + bulkDataFile.getName()) : null;
+        // Segments arrive out of order and cannot be teed into the archive, which would then need a second pass
+        int segments = rawArchive != null ? 1 : downloadSegments;
+        if (segments < downloadSegments)
         {
-            LOGGER.error("BestBuy bulk data API request did not succeed: " + statusLine);
-            return false;
+            LOGGER.info("Raw archiving is enabled, downloading BestBuy bulk data as a single stream");
         }
-
-        LOGGER.info(httpResponse.getStatusLine());
-
-        String bulkDataFilename = createCompressedProductDataFilename();
-        String bulkDataFilePath = Paths.get(destinationDir, bulkDataFilename).toString();
-
-        try (
-                InputStream is = httpResponse.getEntity().getContent();
-                FileOutputStream fos = new FileOutputStream(bulkDataFilePath)
-        )
+        HttpDownloadHandler downloadHandler = new HttpDownloadHandler(segments);
+        downloadHandler.setPreviousValidators(previousValidators);
+        downloadHandler.setTeeOutputStream(rawArchive);
+        DownloadProgress downloadProgress = new DownloadProgress(downloadHandler::getBytesReceived,
+                downloadHandler::getContentLength);
+
+        LOGGER.info("Writing BestBuy bulk data response to file...");
+        downloadProgress.start();
+        DownloadStatus downloadStatus = downloadHandler.download(bulkDataUrl, partialFile, bulkDataFile);
+        downloadProgress.interrupt();
+        if (downloadStatus != DownloadStatus.COMPLETE && rawArchive != null)
         {
-            long contentLength = Long.parseLong(httpResponse.getFirstHeader("Content-length").getValue());
-
-            LOGGER.info("BestBuy bulk data file size: " + (contentLength / 1048576) + "MiB");
-            LOGGER.info("Writing BestBuy bulk data response to file...");
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            totalBytesRead = 0;
-            DownloadProgress downloadProgress = new DownloadProgress(contentLength);
-            downloadProgress.start();
-
-            while ((bytesRead = is.read(buffer)) > 0)
-            {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-            }
-
-            fos.flush();
-            fos.close();
+            rawArchive.abort();
         }
-        catch (FileNotFoundException e)
+        if (downloadStatus == DownloadStatus.NOT_MODIFIED)
         {
-            LOGGER.error("Exception attempting to create output stream for BestBuy bulk data file", e);
-            return false;
+            LOGGER.info("BestBuy bulk data not modified since the last successful run");
+            sourceUnchanged = true;
+            return true;
         }
-        catch (IOException e)
+        if (downloadStatus == DownloadStatus.FAILED)
         {
-            LOGGER.error("Exception retrieving/writing BestBuy bulk data load response content", e);
+            LOGGER.error("BestBuy bulk data download did not complete");
             return false;
         }
-        LOGGER.info("Finished BestBuy bulk data download");
-        File uploadFile = new File(bulkDataFilePath);
-        String uploadFilename = uploadFile.getName();
-        LOGGER.info("Uploading compressed bulk data file to S3: " + uploadFilename);
 
-        if (Constants.ENABLE_BESTBUY_UNCLEANED_S3_UPLOAD && !S3Handler.uploadToS3(Constants.SHOPR_S3_DATA_BUCKET,
-                "product-data/bestbuy/bulk-data/" + uploadFilename, uploadFile))
+        String contentHash = fingerprintBulkDataArchive(bulkDataFile);
+        if (contentHash == null || previousValidators != null && contentHash.equals(previousValidators.getContentHash()))
         {
-            LOGGER.warn("Bulk data upload to S3 failed");
+            if (rawArchive != null)
+            {
+                rawArchive.abort();
+            }
+            if (contentHash == null)
+            {
+                return false;
+            }
+            LOGGER.info("BestBuy bulk data content is identical to the last successful run");
+            sourceUnchanged = true;
+            return true;
+        }
+        ValidatorCache.getInstance().stage(pipelineName, bulkDataUrl, new ValidatorCacheEntry(downloadHandler.getETag(),
+                downloadHandler.getLastModified(), contentHash));
+
+        LOGGER.info("Finished BestBuy bulk data download");
+        if (rawArchive != null)
+        {
+            if (downloadHandler.isTeeComplete())
+            {
+                rawArchive.close();
+            }
+            else
+            {
+                // A resumed download only streamed its tail, so the archive copy comes from the file
+                rawArchive.abort();
+                LOGGER.info("Archiving compressed bulk data file: " + bulkDataFile.getName());
+                if (!RawArchiveSink.archiveFile(RAW_ARCHIVE_PREFIX + bulkDataFile.getName(), bulkDataFile))
+                {
+                    LOGGER.warn("Bulk data archive upload failed");
+                }
+            }
         }
 
         return true;
@@ -123,8 +224,13 @@ public class BestBuyDataPipeline extends DataPipeline
 
     protected boolean executePreProcessPhase(String destinationDir)
     {
-        String compressedFilePath;
-        if ((compressedFilePath = getCompressedBulkDataFilePath(destinationDir)) == null)
+        String compressedFilePath = getCompressedBulkDataFilePath(destinationDir);
+        if (compressedFilePath == null && (streamingRetrieval || BestBuyDeltaRetrieval.hasDeltaPages(uncleanedDir)))
+        {
+            LOGGER.info("No BestBuy bulk data file to unzip. Data was streamed or retrieved as a delta.");
+            return true;
+        }
+        if (compressedFilePath == null)
         {
             LOGGER.error("Could not get file path for compressed bulk data file.");
             return false;
@@ -143,40 +249,39 @@ public class BestBuyDataPipeline extends DataPipeline
             }
         }
 
-        try(ZipInputStream zis = new ZipInputStream(new FileInputStream(compressedFilePath)))
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        ParallelZipExtractor extractor = new ParallelZipExtractor("bestbuy",
+                Integer.parseInt(propertiesLoader.getProperty("bestbuy.extract.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        // Sanitizing an entry right after it is extracted overlaps parsing with inflating the rest of the archive
+        ForkJoinPool sanitizePool = sanitizeDuringExtraction ? createSanitizePool() : null;
+        try
         {
-            ZipEntry zipEntry = zis.getNextEntry();
-            byte[] buffer = new byte[8192];
-
-            while (zipEntry != null)
+            SanitizationEngine engine = new SanitizationEngine("bestbuy");
+            List<SanitizationResult> sanitizeResults = new ArrayList<>();
+            ParallelZipExtractor.EntryHandler sanitizer = sanitizePool == null ? null
+                    : dataFile -> sanitizeExtractedFile(dataFile, engine, sanitizePool, sanitizeResults);
+            boolean extracted = extractor.extract(new File(compressedFilePath), outputDir, sanitizer);
+            if (sanitizePool != null)
             {
-                String filename = zipEntry.getName();
-                File currentFile = new File(createUnzippedDataFilePath(filename));
-                LOGGER.info("Decompressing file: " + filename);
-
-                try(FileOutputStream fos = new FileOutputStream(currentFile))
-                {
-                    int bytesRead;
-                    while ((bytesRead = zis.read(buffer)) > 0)
-                    {
-                        fos.write(buffer, 0, bytesRead);
-                    }
-                    fos.flush();
-                    fos.close();
-                }
-                catch (IOException e)
+                sanitizeResults.sort(Comparator.comparing(SanitizationResult::getFilename));
+                if (!engine.isAcceptable(sanitizeResults))
                 {
-                    LOGGER.error("Exception unzipping BestBuy bulk data file.", e);
-                }
-                finally
-                {
-                    zipEntry = zis.getNextEntry();
+                    return false;
                 }
             }
+            if (!extracted)
+            {
+                LOGGER.error("Exception unzipping BestBuy bulk data file.");
+                return false;
+            }
         }
-        catch (IOException e)
+        finally
         {
-            LOGGER.error("Exception unzipping BestBuy bulk data file.", e);
+            if (sanitizePool != null)
+            {
+                sanitizePool.shutdownNow();
+            }
         }
 
         long elapsedTime = System.currentTimeMillis() - startTime;
@@ -198,10 +303,6 @@ public class BestBuyDataPipeline extends DataPipeline
     {
         LOGGER.info("Phase 3: Starting data clean phase for data directory: " + dataDirectory);
 
-        CsvMapper csvMapper = new CsvMapper();
-
-        JSONParser jsonParser = new JSONParser();
-
         File dataDir = new File(dataDirectory);
         File[] dataFiles = dataDir.listFiles();
         if (dataFiles == null)
@@ -209,6 +310,11 @@ public class BestBuyDataPipeline extends DataPipeline
             LOGGER.error("Failed to get data files from data directory: " + dataDirectory);
             return false;
         }
+        if (dataFiles.length == 0 && (streamingRetrieval || sanitizeDuringExtraction))
+        {
+            LOGGER.info("No uncleaned BestBuy data files. Data was cleaned during streaming retrieval or extraction.");
+            return true;
+        }
 
         File outputDir = new File(cleanedDir);
         if (!outputDir.exists())
@@ -221,167 +327,471 @@ public class BestBuyDataPipeline extends DataPipeline
             }
         }
 
-        for (File dataFile : dataFiles)
+        SanitizationEngine engine = new SanitizationEngine("bestbuy");
+        ForkJoinPool sanitizePool = createSanitizePool();
+        try
         {
-            List<ShoprProductPrice> productPriceList = new ArrayList<>();
-            List<ShoprProductInfo> productInfoList = new ArrayList<>();
-            String dataFilePath = dataFile.getAbsolutePath();
-            LOGGER.info("Parsing data file: " + dataFilePath);
-            try
-            {
-                FileReader reader = new FileReader(dataFile);
-                JSONArray productDataArray = (JSONArray) jsonParser.parse(reader);
-                Date ds = Date.valueOf(Utils.createFormattedDateString());
-                for (Object productObject : productDataArray)
-                {
-                    JSONObject product = (JSONObject) productObject;
+            return engine.isAcceptable(engine.sanitize(dataFiles,
+                    dataFile -> sanitizeDataFile(dataFile, sanitizePool)));
+        }
+        finally
+        {
+            sanitizePool.shutdownNow();
+        }
+    }
 
-                    String upc= (String) product.get("upc");
-                    if (upc == null)
-                    {
-                        continue;
-                    }
+    /**
+     * The pool the chunks of split data files are parsed on, shared by every file of a phase.
+     */
+    private ForkJoinPool createSanitizePool()
+    {
+        return new ForkJoinPool(Math.max(1, sanitizeParallelism));
+    }
 
-                    /* Data for table product_price */
-                    ShoprProductPrice shoprProductPrice = new ShoprProductPrice();
-                    shoprProductPrice.setDs(ds);
-                    shoprProductPrice.setUpc(upc);
-                    shoprProductPrice.setRegularPrice((Double) product.get("regularPrice"));
-                    shoprProductPrice.setSalePrice((Double) product.get("salePrice"));
-                    shoprProductPrice.setVendor(pipelineName.name());
-
-                    /* Data for table product_info */
-                    ShoprProductInfo shoprProductInfo = new ShoprProductInfo();
-                    shoprProductInfo.setUpc(upc);
-                    String name = (String) product.get("name");
-                    if (name != null)
-                    {
-                        shoprProductInfo.setName(name.replaceAll("\\r?\\n", " "));
-                    }
-                    String image = (String) product.get("image");
-                    if (image != null)
-                    {
-                        shoprProductInfo.setImage(image.replace("\"", ""));
-                    }
-                    String thumbnailImage = (String) product.get("thumbnailImage");
-                    if (thumbnailImage != null)
-                    {
-                        shoprProductInfo.setThumbnail(thumbnailImage.replace("\"", ""));
-                    }
-                    String shortDescription = (String) product.get("shortDescription");
-                    if (shortDescription != null)
-                    {
-                        shortDescription = shortDescription.replaceAll("\\r?\\n", " ");
-                    }
-                    shoprProductInfo.setShortDescription(shortDescription);
-                    String longDescription = (String) product.get("longDescription");
-                    if (longDescription != null)
-                    {
-                        longDescription = longDescription.replaceAll("\\r?\\n", " ");
-                    }
-                    shoprProductInfo.setLongDescription(longDescription);
-                    Long customerReviewCount = (Long) product.get("customerReviewCount");
-                    if (customerReviewCount == null)
-                    {
-                        customerReviewCount = Long.valueOf(0);
-                    }
-                    shoprProductInfo.setCustomerReviewCount(customerReviewCount);
-                    shoprProductInfo.setCustomerReviewAverage((String) product.get("customerReviewAverage"));
-                    shoprProductInfo.setVendor(pipelineName.name());
-                    JSONArray categoryPathArray = ((JSONArray)product.get("categoryPath"));
-                    List<String> categories = new ArrayList<>();
-                    for (Object obj : categoryPathArray)
-                    {
-                        JSONObject jsonObj = (JSONObject) obj;
-                        categories.add(((String) jsonObj.get("name")).replace("\"", ""));
-                    }
-                    String categoriesPath = categories.stream().collect(Collectors.joining("/"));
-                    shoprProductInfo.setCategoryPath(categoriesPath);
+    protected boolean executeS3UploadPhase(String productDataDirectory)
+    {
+        LOGGER.info("Phase 4: Uploading product data to S3");
+
+        String zipPriceFileName = Utils.createFormattedDateString() + "_price-parsed-data.zip";
+        String zipPriceFilePath = baseDir + File.separator + zipPriceFileName;
+
+        String zipInfoFileName = Utils.createFormattedDateString() + "_info-parsed-data.zip";
+        String zipInfoFilePath = baseDir + File.separator + zipInfoFileName;
+
+        return s3Upload(zipPriceFileName, zipPriceFilePath, productDataDirectory + File.separator + "product_price")
+                && s3Upload(zipInfoFileName, zipInfoFilePath, productDataDirectory + File.separator + "product_info");
+    }
+
+    protected boolean executeDbInsertionPhase(String productDataDirectory)
+    {
+        LOGGER.info("Phase 5: Inserting product data into database");
+
+        return dbInsert(productDataDirectory + File.separator + "product_info", "product_info")
+                && dbInsert(productDataDirectory + File.separator + "product_price", "product_prices");
+    }
+
+    /**
+     * Feeds the bulk data response through a ZipInputStream and sanitizes each entry as it is inflated, so the
+     * compressed archive and the uncleaned JSON files never touch the disk.
+     */
+    private boolean streamBulkDataToSanitizer()
+    {
+        String bulkDataUrl = Utils.getBestBuyProductsApiUrlString();
+        ValidatorCacheEntry previousValidators = ValidatorCache.getInstance().get(bulkDataUrl);
+        // The archive is already compressed, and its size is only known from an uninflated response
+        HttpClient httpClient = HttpTransport.getInstance().getDownloadClient();
+        HttpGet request = new HttpGet(bulkDataUrl);
+        ValidatorCache.getInstance().applyConditionalHeaders(request, bulkDataUrl);
+        HttpResponse httpResponse;
+        try
+        {
+            httpResponse = httpClient.execute(request);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Exception executing BestBuy bulk data download request", e);
+            return false;
+        }
+
+        StatusLine statusLine = httpResponse.getStatusLine();
+
+        if (statusLine.getStatusCode() == 304)
+        {
+            LOGGER.info("BestBuy bulk data not modified since the last successful run");
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            sourceUnchanged = true;
+            return true;
+        }
+        if (statusLine.getStatusCode() != 200)
+        {
+            LOGGER.error("BestBuy bulk data API request did not succeed: " + statusLine);
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            return false;
+        }
+
+        LOGGER.info(httpResponse.getStatusLine());
 
-                    productPriceList.add(shoprProductPrice);
-                    productInfoList.add(shoprProductInfo);
+        if (!LocalFileSystemHandler.createDirectory(cleanedDir + File.separator + "product_price")
+                || !LocalFileSystemHandler.createDirectory(cleanedDir + File.separator + "product_info"))
+        {
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            return false;
+        }
+
+        long contentLength = httpResponse.getEntity().getContentLength();
+        if (contentLength >= 0)
+        {
+            LOGGER.info("BestBuy bulk data file size: " + (contentLength / 1048576) + "MiB");
+        }
+        else
+        {
+            LOGGER.info("BestBuy bulk data file size not known, the response has no Content-Length");
+        }
+        LOGGER.info("Streaming BestBuy bulk data response into sanitization...");
+        long startTime = System.currentTimeMillis();
+        totalBytesRead = 0;
+        DownloadProgress downloadProgress = new DownloadProgress(() -> totalBytesRead, () -> contentLength);
+        downloadProgress.start();
+        MessageDigest fingerprint = Utils.createContentDigest();
+        RawArchiveSink rawArchive = Constants.ENABLE_BESTBUY_UNCLEANED_S3_UPLOAD
+                ? RawArchiveSink.open(RAW_ARCHIVE_PREFIX + createCompressedProductDataFilename()) : null;
+        boolean streamed = false;
+
+        try (
+                InputStream is = rawArchive == null ? httpResponse.getEntity().getContent()
+                        : new TeeInputStream(httpResponse.getEntity().getContent(), rawArchive);
+                BufferedInputStream bis = new BufferedInputStream(new ProgressInputStream(is), 65536);
+                ZipInputStream zis = new ZipInputStream(bis)
+        )
+        {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null)
+            {
+                LOGGER.info("Sanitizing streamed entry: " + zipEntry.getName());
+                Reader reader = new InputStreamReader(new CloseShieldInputStream(zis), StandardCharsets.UTF_8);
+                if (sanitizeProductData(reader, zipEntry.getName()).isFailed())
+                {
+                    return false;
                 }
-                reader.close();
+                zis.closeEntry();
+                updateArchiveFingerprint(fingerprint, zipEntry);
             }
-            catch (ParseException e)
+            if (rawArchive != null)
             {
-                LOGGER.error("Parsing data file failed: " + dataFilePath, e);
+                // ZipInputStream stops after the last entry, the central directory still has to reach the archive
+                ChannelIO.drain(bis);
             }
-            catch (IOException e)
+            streamed = true;
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Exception streaming BestBuy bulk data response content", e);
+            return false;
+        }
+        finally
+        {
+            downloadProgress.interrupt();
+            if (rawArchive != null && !streamed)
             {
-                LOGGER.error("Opening data file failed: " + dataFilePath, e);
-                return false;
+                rawArchive.abort();
             }
+        }
 
-            String filename = dataFile.getName().replace(".json", ".nsv");
-            String priceOutFilePath = createCleanedProductPriceDataFilePath(filename);
-            File outFile = new File(priceOutFilePath);
-            CsvSchema schema = csvMapper.schemaFor(ShoprProductPrice.class);
-            schema = schema.withColumnSeparator('\0');
-            ObjectWriter objectWriter = csvMapper.writer(schema);
-            try (
-                    FileOutputStream fos = new FileOutputStream(outFile);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, 8192);
-                    OutputStreamWriter osw = new OutputStreamWriter(bos, "UTF-8")
-            )
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        LOGGER.info(String.format("Finished streaming BestBuy bulk data. Elapsed Time: %s", Utils.formatTime(elapsedTime)));
+
+        String contentHash = Utils.toHexString(fingerprint.digest());
+        if (previousValidators != null && contentHash.equals(previousValidators.getContentHash()))
+        {
+            LOGGER.info("BestBuy bulk data content is identical to the last successful run");
+            if (rawArchive != null)
             {
-                objectWriter.writeValue(osw, productPriceList);
+                rawArchive.abort();
             }
-            catch (FileNotFoundException e)
+            sourceUnchanged = true;
+            return true;
+        }
+        if (rawArchive != null)
+        {
+            rawArchive.close();
+        }
+        ValidatorCache.getInstance().stage(pipelineName, bulkDataUrl, new ValidatorCacheEntry(
+                getHeaderValue(httpResponse, HttpHeaders.ETAG), getHeaderValue(httpResponse, HttpHeaders.LAST_MODIFIED),
+                contentHash));
+        return true;
+    }
+
+    /**
+     * Sanitizes one extracted entry and deletes it, so the sanitization phase does not clean it a second time. The
+     * result is collected for the engine, and the extraction stops once more files have failed than it allows.
+     */
+    private boolean sanitizeExtractedFile(File dataFile, SanitizationEngine engine, ForkJoinPool sanitizePool,
+                                          List<SanitizationResult> results)
+    {
+        SanitizationResult result = SanitizationEngine.sanitizeFile(dataFile,
+                file -> sanitizeDataFile(file, sanitizePool));
+        if (!dataFile.delete())
+        {
+            LOGGER.warn("Failed to delete sanitized data file: " + dataFile.getAbsolutePath());
+        }
+        synchronized (results)
+        {
+            results.add(result);
+            return engine.isWithinFailureLimit(results);
+        }
+    }
+
+    /**
+     * Sanitizes a data file on disk. Files of at least bestbuy.sanitize.split.bytes that hold a bare product array
+     * are cut into chunks of whole products, parsed on several threads, and merged back in order.
+     */
+    private SanitizationResult sanitizeDataFile(File dataFile, ForkJoinPool sanitizePool)
+    {
+        LOGGER.info("Parsing data file: " + dataFile.getAbsolutePath());
+        if (sanitizeParallelism > 1 && dataFile.length() >= splitThresholdBytes)
+        {
+            List<JsonArraySplitter.Chunk> chunks;
+            try
             {
-                LOGGER.warn("Could not find file: " + priceOutFilePath, e);
+                chunks = JsonArraySplitter.split(dataFile, Math.max(MIN_CHUNK_BYTES,
+                        dataFile.length() / (sanitizeParallelism * 4)));
             }
             catch (IOException e)
             {
-                LOGGER.error("Exception while writing products to file: " + priceOutFilePath, e);
+                LOGGER.error("Scanning data file failed: " + dataFile.getAbsolutePath(), e);
+                return new SanitizationResult(dataFile.getName(), SanitizationStatus.FAILED, 0, e.toString());
+            }
+            if (chunks.size() > 1)
+            {
+                return sanitizeInChunks(dataFile, chunks, sanitizePool);
+            }
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8))
+        {
+            return sanitizeProductData(reader, dataFile.getName());
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Opening data file failed: " + dataFile.getAbsolutePath(), e);
+            return new SanitizationResult(dataFile.getName(), SanitizationStatus.FAILED, 0, e.toString());
+        }
+    }
+
+    /**
+     * Streams one product at a time from the data file to the cleaned files, so memory does not grow with the file.
+     * Bulk export entries are bare arrays, delta pages wrap the array in a paging object.
+     */
+    private SanitizationResult sanitizeProductData(Reader reader, String dataFilename)
+    {
+        String filename = dataFilename.replace(".json", ".nsv");
+        String priceOutFilePath = createCleanedProductPriceDataFilePath(filename);
+        String infoOutFilePath = createCleanedProductInfoDataFilePath(filename);
+        Date ds = Date.valueOf(Utils.createFormattedDateString());
+        SanitizationResult result = new SanitizationResult(dataFilename, SanitizationStatus.COMPLETE, 0, null);
+        try (
+                NsvRowEncoder priceWriter = new NsvRowEncoder(new FileOutputStream(priceOutFilePath));
+                NsvRowEncoder infoWriter = new NsvRowEncoder(new FileOutputStream(infoOutFilePath));
+                JsonParser parser = JSON_MAPPER.getFactory().createParser(reader)
+        )
+        {
+            if (!seekProductArray(parser))
+            {
+                LOGGER.error("No product array in data file: " + dataFilename);
+                result.setStatus(SanitizationStatus.PARTIAL);
+                result.setMessage("no product array");
+                return result;
             }
+            writeProducts(parser, priceWriter, infoWriter, ds, result);
+        }
+        catch (JsonProcessingException e)
+        {
+            // Rows before the malformed product are kept, as they were when the whole file was parsed up front
+            LOGGER.error("Parsing data failed: " + dataFilename, e);
+            result.setStatus(SanitizationStatus.PARTIAL);
+            result.setMessage(e.getOriginalMessage());
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Reading or writing data failed: " + dataFilename, e);
+            result.setStatus(SanitizationStatus.FAILED);
+            result.setMessage(e.toString());
+        }
+        return result;
+    }
+
+    private SanitizationResult sanitizeInChunks(File dataFile, List<JsonArraySplitter.Chunk> chunks,
+                                                ForkJoinPool sanitizePool)
+    {
+        String filename = dataFile.getName().replace(".json", ".nsv");
+        String priceOutFilePath = createCleanedProductPriceDataFilePath(filename);
+        String infoOutFilePath = createCleanedProductInfoDataFilePath(filename);
+        Date ds = Date.valueOf(Utils.createFormattedDateString());
+        LOGGER.info(String.format("Parsing %s in %d chunks on %d threads", dataFile.getName(), chunks.size(),
+                sanitizeParallelism));
+        long startTime = System.currentTimeMillis();
 
-            String infoOutFilePath = createCleanedProductInfoDataFilePath(filename);
-            outFile = new File(infoOutFilePath);
-            schema = csvMapper.schemaFor(ShoprProductInfo.class);
-            schema = schema.withColumnSeparator('\0');
-            objectWriter = csvMapper.writer(schema);
-            try (
-                    FileOutputStream fos = new FileOutputStream(outFile);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, 8192);
-                    OutputStreamWriter osw = new OutputStreamWriter(bos, "UTF-8")
-            )
+        List<ForkJoinTask<SanitizationResult>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++)
+        {
+            JsonArraySplitter.Chunk chunk = chunks.get(i);
+            String partSuffix = CHUNK_PART_SUFFIX + i;
+            tasks.add(sanitizePool.submit(() -> sanitizeChunk(dataFile, chunk, priceOutFilePath + partSuffix,
+                    infoOutFilePath + partSuffix, ds)));
+        }
+        SanitizationResult result = new SanitizationResult(dataFile.getName(), SanitizationStatus.COMPLETE, 0, null);
+        for (ForkJoinTask<SanitizationResult> task : tasks)
+        {
+            SanitizationResult chunkResult = task.join();
+            result.setRows(result.getRows() + chunkResult.getRows());
+            if (getSeverity(chunkResult.getStatus()) > getSeverity(result.getStatus()))
             {
-                objectWriter.writeValue(osw, productInfoList);
+                result.setStatus(chunkResult.getStatus());
+                result.setMessage(chunkResult.getMessage());
             }
-            catch (FileNotFoundException e)
+        }
+        PipelineMetrics.getInstance().add("bestbuy.sanitize.chunks", chunks.size());
+
+        try
+        {
+            if (!result.isFailed())
             {
-                LOGGER.warn("Could not find file: " + infoOutFilePath, e);
+                mergeChunkParts(priceOutFilePath, chunks.size());
+                mergeChunkParts(infoOutFilePath, chunks.size());
             }
-            catch (IOException e)
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Merging chunk output failed: " + dataFile.getName(), e);
+            result.setStatus(SanitizationStatus.FAILED);
+            result.setMessage(e.toString());
+        }
+        finally
+        {
+            for (int i = 0; i < chunks.size(); i++)
             {
-                LOGGER.error("Exception while writing products to file: " + infoOutFilePath, e);
+                new File(priceOutFilePath + CHUNK_PART_SUFFIX + i).delete();
+                new File(infoOutFilePath + CHUNK_PART_SUFFIX + i).delete();
             }
         }
+        LOGGER.info(String.format("Parsed %s in %s", dataFile.getName(),
+                Utils.formatTime(System.currentTimeMillis() - startTime)));
+        return result;
+    }
 
-        return true;
+    /**
+     * How much a chunk's status says about the whole file: FAILED outranks PARTIAL, which outranks COMPLETE. A chunk
+     * without products says nothing about the rows the others wrote.
+     */
+    private static int getSeverity(SanitizationStatus status)
+    {
+        switch (status)
+        {
+            case FAILED:
+                return 3;
+            case PARTIAL:
+                return 2;
+            case COMPLETE:
+                return 1;
+            default:
+                return 0;
+        }
     }
 
-    protected boolean executeS3UploadPhase(String productDataDirectory)
+    private SanitizationResult sanitizeChunk(File dataFile, JsonArraySplitter.Chunk chunk, String pricePartPath,
+                                             String infoPartPath, Date ds)
     {
-        LOGGER.info("Phase 4: Uploading product data to S3");
+        String range = String.format("bytes %d-%d", chunk.getStart(), chunk.getEnd());
+        SanitizationResult result = new SanitizationResult(dataFile.getName(), SanitizationStatus.COMPLETE, 0, null);
+        try (
+                InputStream is = JsonArraySplitter.openChunk(dataFile, chunk);
+                NsvRowEncoder priceWriter = new NsvRowEncoder(new FileOutputStream(pricePartPath));
+                NsvRowEncoder infoWriter = new NsvRowEncoder(new FileOutputStream(infoPartPath));
+                JsonParser parser = JSON_MAPPER.getFactory().createParser(is)
+        )
+        {
+            parser.nextToken();
+            writeProducts(parser, priceWriter, infoWriter, ds, result);
+        }
+        catch (JsonProcessingException e)
+        {
+            LOGGER.error(String.format("Parsing data failed: %s, %s", dataFile.getName(), range), e);
+            result.setStatus(SanitizationStatus.PARTIAL);
+            result.setMessage(range + ": " + e.getOriginalMessage());
+        }
+        catch (IOException e)
+        {
+            LOGGER.error(String.format("Reading or writing data failed: %s, %s", dataFile.getName(), range), e);
+            result.setStatus(SanitizationStatus.FAILED);
+            result.setMessage(range + ": " + e);
+        }
+        return result;
+    }
 
-        String zipPriceFileName = Utils.createFormattedDateString() + "_price-parsed-data.zip";
-        String zipPriceFilePath = baseDir + File.separator + zipPriceFileName;
+    /**
+     * Concatenates the chunk parts of a cleaned file in chunk order, which gives the rows the order of the products
+     * in the data file.
+     */
+    private static void mergeChunkParts(String outFilePath, int parts) throws IOException
+    {
+        try (FileChannel out = FileChannel.open(Paths.get(outFilePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for (int i = 0; i < parts; i++)
+            {
+                try (FileChannel part = FileChannel.open(Paths.get(outFilePath + CHUNK_PART_SUFFIX + i),
+                        StandardOpenOption.READ))
+                {
+                    ChannelIO.transfer(part, out, "bestbuy.sanitize.merge");
+                }
+            }
+        }
+    }
 
-        String zipInfoFileName = Utils.createFormattedDateString() + "_info-parsed-data.zip";
-        String zipInfoFilePath = baseDir + File.separator + zipInfoFileName;
+    /**
+     * Writes a row pair for every product in the array the parser is at, counting them in result.
+     */
+    private void writeProducts(JsonParser parser, NsvRowEncoder priceWriter, NsvRowEncoder infoWriter, Date ds,
+                               SanitizationResult result) throws IOException
+    {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null)
+        {
+            if (token != JsonToken.START_OBJECT)
+            {
+                parser.skipChildren();
+                continue;
+            }
+            JsonNode product = PRODUCT_PROJECTION.readObject(parser);
 
-        return s3Upload(zipPriceFileName, zipPriceFilePath, productDataDirectory + File.separator + "product_price")
-                && s3Upload(zipInfoFileName, zipInfoFilePath, productDataDirectory + File.separator + "product_info");
+            String upc = JsonProjection.getText(product, "upc");
+            if (upc == null)
+            {
+                continue;
+            }
+
+            /* Data for table product_price */
+            ShoprProductPrice shoprProductPrice = createProductPrice(ds, upc,
+                    JsonProjection.getDouble(product, "regularPrice"), JsonProjection.getDouble(product, "salePrice"));
+
+            /* Data for table product_info */
+            ShoprProductInfo shoprProductInfo = createProductInfo(product, upc);
+            JsonNode customerReviewCount = product.get("customerReviewCount");
+            shoprProductInfo.setCustomerReviewCount(customerReviewCount != null && customerReviewCount.isNumber()
+                    ? customerReviewCount.longValue() : 0L);
+            shoprProductInfo.setCustomerReviewAverage(JsonProjection.getText(product, "customerReviewAverage"));
+            List<String> categories = new ArrayList<>();
+            for (JsonNode category : product.path("categoryPath"))
+            {
+                String categoryName = JsonProjection.getText(category, "name");
+                if (categoryName != null)
+                {
+                    categories.add(categoryName.replace("\"", ""));
+                }
+            }
+            shoprProductInfo.setCategoryPath(String.join("/", categories));
+
+            priceWriter.write(shoprProductPrice);
+            infoWriter.write(shoprProductInfo);
+            result.setRows(result.getRows() + 1);
+        }
     }
 
-    protected boolean executeDbInsertionPhase(String productDataDirectory)
+    /**
+     * Moves the parser onto the start of the product array.
+     */
+    private static boolean seekProductArray(JsonParser parser) throws IOException
     {
-        LOGGER.info("Phase 5: Inserting product data into database");
-
-        return dbInsert(productDataDirectory + File.separator + "product_info", "product_info")
-                && dbInsert(productDataDirectory + File.separator + "product_price", "product_prices");
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY)
+        {
+            return true;
+        }
+        if (token != JsonToken.START_OBJECT)
+        {
+            return false;
+        }
+        parser.nextToken();
+        return JsonProjection.seekArrayField(parser, "products");
     }
 
     private boolean s3Upload(String zipFileName, String zipFilePath, String productDataDirectory)
@@ -430,9 +840,83 @@ public class BestBuyDataPipeline extends DataPipeline
         return true;
     }
 
-    private String createUnzippedDataFilePath(String filename)
+    @Override
+    protected boolean isResumableArtifact(File file)
+    {
+        return HttpDownloadHandler.isDownloadArtifact(file, PARTIAL_BULK_DATA_FILENAME);
+    }
+
+    /**
+     * Verifies every entry of the downloaded archive against its CRC and returns a fingerprint built from the entry
+     * names, CRCs and sizes. Returns null if the archive is unusable.
+     */
+    private String fingerprintBulkDataArchive(File bulkDataFile)
+    {
+        try (ZipFile zipFile = new ZipFile(bulkDataFile))
+        {
+            if (zipFile.size() > 0)
+            {
+                MessageDigest fingerprint = Utils.createContentDigest();
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements())
+                {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    verifyArchiveEntry(zipFile, zipEntry);
+                    updateArchiveFingerprint(fingerprint, zipEntry);
+                }
+                LOGGER.info(String.format("Verified BestBuy bulk data archive: %d entries, all CRCs match",
+                        zipFile.size()));
+                return Utils.toHexString(fingerprint.digest());
+            }
+            LOGGER.error("BestBuy bulk data archive contains no entries: " + bulkDataFile);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("BestBuy bulk data file is not a valid zip archive: " + bulkDataFile, e);
+        }
+
+        try
+        {
+            Files.deleteIfExists(bulkDataFile.toPath());
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to delete invalid BestBuy bulk data file", e);
+        }
+        return null;
+    }
+
+    /**
+     * Inflates an entry and checks it against the CRC and size in the central directory, so a resumed or segmented
+     * range with the right length but the wrong bytes fails the download.
+     */
+    private static void verifyArchiveEntry(ZipFile zipFile, ZipEntry zipEntry) throws IOException
+    {
+        if (zipEntry.isDirectory())
+        {
+            return;
+        }
+        try (CheckedInputStream is = new CheckedInputStream(zipFile.getInputStream(zipEntry), new CRC32()))
+        {
+            long size = ChannelIO.drain(is);
+            if (zipEntry.getSize() >= 0 && size != zipEntry.getSize()
+                    || is.getChecksum().getValue() != zipEntry.getCrc())
+            {
+                throw new ZipException(String.format("Entry %s does not match its CRC or size", zipEntry.getName()));
+            }
+        }
+    }
+
+    private void updateArchiveFingerprint(MessageDigest fingerprint, ZipEntry zipEntry)
     {
-        return String.format("%s%s%s", uncleanedDir, File.separator, filename);
+        fingerprint.update(String.format("%s:%d:%d%n", zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize())
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getHeaderValue(HttpResponse httpResponse, String name)
+    {
+        Header header = httpResponse.getFirstHeader(name);
+        return header == null ? null : header.getValue();
     }
 
     private String createCleanedProductPriceDataFilePath(String filename)
@@ -469,26 +953,51 @@ public class BestBuyDataPipeline extends DataPipeline
 
     private class DownloadProgress extends Thread
     {
-        private long totalBytesToDownload;
+        private final LongSupplier bytesDownloaded;
+        private final LongSupplier totalBytesToDownload;
 
-        public DownloadProgress(long totalBytesToDownload)
+        public DownloadProgress(LongSupplier bytesDownloaded, LongSupplier totalBytesToDownload)
         {
+            this.bytesDownloaded = bytesDownloaded;
             this.totalBytesToDownload = totalBytesToDownload;
+            setDaemon(true);
         }
 
         public void run()
         {
             try
             {
-                while (totalBytesRead < totalBytesToDownload)
+                while (!isInterrupted())
                 {
-                    LOGGER.info(String.format("Progress: %.2f%%", 100.0 * totalBytesRead / totalBytesToDownload));
+                    long totalBytes = totalBytesToDownload.getAsLong();
+                    if (totalBytes > 0)
+                    {
+                        LOGGER.info(String.format("Progress: %.2f%% of %dMiB", 100.0 * bytesDownloaded.getAsLong() / totalBytes,
+                                totalBytes / 1048576));
+                    }
                     TimeUnit.SECONDS.sleep(5);
                 }
             }
             catch (InterruptedException e)
             {
-                LOGGER.warn("Exception sleeping in DownloadProgress", e);
+                // Download finished or failed, nothing left to report
+            }
+        }
+    }
+
+    private class ProgressInputStream extends ProxyInputStream
+    {
+        public ProgressInputStream(InputStream proxy)
+        {
+            super(proxy);
+        }
+
+        @Override
+        protected void afterRead(int bytesRead)
+        {
+            if (bytesRead > 0)
+            {
+                totalBytesRead += bytesRead;
             }
         }
     }
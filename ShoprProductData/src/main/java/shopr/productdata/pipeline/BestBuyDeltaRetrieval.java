@@ -0,0 +1,265 @@
+package shopr.productdata.pipeline;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import shopr.productdata.utils.ChannelIO;
+import shopr.productdata.utils.Constants;
+import shopr.productdata.utils.HttpTransport;
+import shopr.productdata.utils.LocalStateStore;
+import shopr.productdata.utils.PropertiesLoader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Neil on 11/5/2016.
+ *
+ * Pages through BestBuy products updated since the watermark of the last successful run instead of pulling the
+ * whole bulk export.
+ *
+ * @author Neil Allison
+ */
+class BestBuyDeltaRetrieval
+{
+    private static final Logger LOGGER = Logger.getLogger(BestBuyDeltaRetrieval.class);
+    private static final String STATE_NAME = "bestbuy-delta";
+    private static final String PENDING_PREFIX = "pending.";
+    private static final String WATERMARK = "watermark";
+    private static final String LAST_FULL_RETRIEVAL = "lastFullRetrieval";
+    private static final String DELTA_PAGE_PREFIX = "products_delta_page_";
+    /* Stored timestamps carry their offset. Ones written before that have none and are read in the local zone. */
+    private static final DateTimeFormatter STATE_FORMAT = ISODateTimeFormat.dateTimeNoMillis().withZoneUTC();
+    private static final DateTimeFormatter STATE_PARSER = ISODateTimeFormat.dateTimeParser().withOffsetParsed();
+    /* itemUpdateDate has no zone and is compared in BestBuy's local time */
+    private static final DateTimeFormatter QUERY_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final String SHOW_FIELDS = "upc,name,regularPrice,salePrice,image,thumbnailImage,shortDescription,"
+            + "longDescription,customerReviewCount,customerReviewAverage,categoryPath.name";
+    private static final int PAGE_SIZE = 100;
+
+    enum Outcome
+    {
+        RETRIEVED,
+        UNCHANGED,
+        TOO_LARGE,
+        FAILED
+    }
+
+    private final DateTime retrievalStart = new DateTime(DateTimeZone.UTC);
+    private final Properties state;
+    private final int fullRetrievalIntervalDays;
+    private final long maxDeltaProducts;
+    private final int overlapMinutes;
+    private final long pageDelayMillis;
+    private final DateTimeZone apiZone;
+
+    BestBuyDeltaRetrieval()
+    {
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        fullRetrievalIntervalDays = Integer.parseInt(propertiesLoader.getProperty("bestbuy.delta.full.interval.days", "7"));
+        maxDeltaProducts = Long.parseLong(propertiesLoader.getProperty("bestbuy.delta.max.products", "50000"));
+        overlapMinutes = Integer.parseInt(propertiesLoader.getProperty("bestbuy.delta.overlap.minutes", "60"));
+        pageDelayMillis = Long.parseLong(propertiesLoader.getProperty("bestbuy.delta.page.delay.ms", "250"));
+        apiZone = DateTimeZone.forID(propertiesLoader.getProperty("bestbuy.api.timezone", "America/Chicago"));
+        state = LocalStateStore.getInstance().load(STATE_NAME);
+    }
+
+    static boolean hasDeltaPages(String uncleanedDir)
+    {
+        File[] files = (new File(uncleanedDir)).listFiles((dir, name) -> name.startsWith(DELTA_PAGE_PREFIX));
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * Moves the watermark staged by the last retrieval into place. Only called once the whole pipeline succeeded,
+     * so a failed load is picked up again by the next delta.
+     */
+    static void commitWatermark()
+    {
+        Properties state = LocalStateStore.getInstance().load(STATE_NAME);
+        boolean changed = false;
+        for (String key : state.stringPropertyNames())
+        {
+            if (key.startsWith(PENDING_PREFIX))
+            {
+                state.setProperty(key.substring(PENDING_PREFIX.length()), state.getProperty(key));
+                state.remove(key);
+                changed = true;
+            }
+        }
+        if (changed)
+        {
+            LocalStateStore.getInstance().store(STATE_NAME, state);
+        }
+    }
+
+    /**
+     * Returns why this run has to use the full bulk export, or null if a delta retrieval may be attempted.
+     */
+    String getFullRetrievalReason()
+    {
+        if (state.getProperty(WATERMARK) == null)
+        {
+            return "no watermark from a previous successful run";
+        }
+        String lastFullRetrieval = state.getProperty(LAST_FULL_RETRIEVAL);
+        if (lastFullRetrieval == null
+                || STATE_PARSER.parseDateTime(lastFullRetrieval).plusDays(fullRetrievalIntervalDays).isBefore(retrievalStart))
+        {
+            return String.format("last full retrieval is older than %d days", fullRetrievalIntervalDays);
+        }
+        return null;
+    }
+
+    void stageWatermark(boolean fullRetrieval)
+    {
+        state.setProperty(PENDING_PREFIX + WATERMARK, STATE_FORMAT.print(retrievalStart));
+        if (fullRetrieval)
+        {
+            state.setProperty(PENDING_PREFIX + LAST_FULL_RETRIEVAL, STATE_FORMAT.print(retrievalStart));
+        }
+        LocalStateStore.getInstance().store(STATE_NAME, state);
+    }
+
+    Outcome retrieve(String uncleanedDir)
+    {
+        // Back off by the overlap so products updated while the last run was starting, or stamped by a clock
+        // running slightly behind ours, are not missed
+        String watermark = QUERY_FORMAT.withZone(apiZone)
+                .print(STATE_PARSER.parseDateTime(state.getProperty(WATERMARK)).minusMinutes(overlapMinutes));
+        LOGGER.info(String.format("Retrieving BestBuy products updated since %s %s", watermark, apiZone.getID()));
+        HttpClient httpClient = HttpTransport.getInstance().getClient();
+
+        long totalPages = 1;
+        for (int page = 1; page <= totalPages; page++)
+        {
+            HttpGet request = new HttpGet(getDeltaApiUrlString(watermark, page));
+            HttpResponse httpResponse;
+            try
+            {
+                httpResponse = httpClient.execute(request);
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Exception executing BestBuy delta products request", e);
+                return Outcome.FAILED;
+            }
+
+            StatusLine statusLine = httpResponse.getStatusLine();
+            if (statusLine.getStatusCode() != 200)
+            {
+                LOGGER.error("BestBuy delta products API request did not succeed: " + statusLine);
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                return Outcome.FAILED;
+            }
+
+            // Pages are kept as the API returns them, so they go through the regular sanitization phase
+            String dataFilePath = Paths.get(uncleanedDir, DELTA_PAGE_PREFIX + page + ".json").toString();
+            try (
+                    InputStream is = httpResponse.getEntity().getContent();
+                    FileOutputStream fos = new FileOutputStream(dataFilePath)
+            )
+            {
+                ChannelIO.copy(is, fos, "bestbuy.delta");
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Exception retrieving/writing BestBuy delta products response content", e);
+                return Outcome.FAILED;
+            }
+
+            if (page == 1)
+            {
+                long total;
+                try (Reader reader = new InputStreamReader(new FileInputStream(dataFilePath), StandardCharsets.UTF_8))
+                {
+                    JSONObject firstPage = (JSONObject) (new JSONParser()).parse(reader);
+                    Object totalValue = firstPage.get("total");
+                    Object totalPagesValue = firstPage.get("totalPages");
+                    if (!(totalValue instanceof Long) || !(totalPagesValue instanceof Long))
+                    {
+                        LOGGER.error("BestBuy delta response has no paging information");
+                        return Outcome.FAILED;
+                    }
+                    total = (Long) totalValue;
+                    totalPages = (Long) totalPagesValue;
+                }
+                catch (IOException | ParseException | ClassCastException e)
+                {
+                    LOGGER.error("Could not read paging information from BestBuy delta response", e);
+                    return Outcome.FAILED;
+                }
+
+                LOGGER.info(String.format("BestBuy delta contains %d products in %d pages", total, totalPages));
+                if (total == 0)
+                {
+                    deleteDeltaPages(uncleanedDir);
+                    return Outcome.UNCHANGED;
+                }
+                if (total > maxDeltaProducts)
+                {
+                    LOGGER.info(String.format("BestBuy delta exceeds %d products", maxDeltaProducts));
+                    deleteDeltaPages(uncleanedDir);
+                    return Outcome.TOO_LARGE;
+                }
+            }
+
+            try
+            {
+                // Stay under the per-key request rate of the BestBuy products API
+                TimeUnit.MILLISECONDS.sleep(pageDelayMillis);
+            }
+            catch (InterruptedException e)
+            {
+                LOGGER.warn("Interrupted between BestBuy delta pages", e);
+                Thread.currentThread().interrupt();
+                return Outcome.FAILED;
+            }
+        }
+
+        return Outcome.RETRIEVED;
+    }
+
+    private void deleteDeltaPages(String uncleanedDir)
+    {
+        File[] files = (new File(uncleanedDir)).listFiles((dir, name) -> name.startsWith(DELTA_PAGE_PREFIX));
+        if (files == null)
+        {
+            return;
+        }
+        for (File file : files)
+        {
+            try
+            {
+                Files.deleteIfExists(file.toPath());
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to delete BestBuy delta page: " + file, e);
+            }
+        }
+    }
+
+    private String getDeltaApiUrlString(String watermark, int page)
+    {
+        // '>' is not a legal URI character, so the filter operator goes out encoded
+        return String.format("%s(itemUpdateDate%%3E%s)?apiKey=%s&format=json&show=%s&pageSize=%d&page=%d",
+                Constants.BESTBUY_PRODUCT_API_BASE, watermark,
+                PropertiesLoader.getInstance().getProperty("bestbuy.apikey"), SHOW_FIELDS, PAGE_SIZE, page);
+    }
+}
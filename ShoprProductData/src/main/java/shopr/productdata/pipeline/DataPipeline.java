@@ -1,16 +1,23 @@
 package shopr.productdata.pipeline;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.log4j.Logger;
 import shopr.productdata.objects.Phase;
 import shopr.productdata.objects.PipelineName;
+import shopr.productdata.objects.ShoprProductInfo;
+import shopr.productdata.objects.ShoprProductPrice;
 import shopr.productdata.utils.EmailHandler;
+import shopr.productdata.utils.JsonProjection;
 import shopr.productdata.utils.LocalFileSystemHandler;
+import shopr.productdata.utils.PipelineMetrics;
 import shopr.productdata.utils.PropertiesLoader;
 import shopr.productdata.utils.Utils;
+import shopr.productdata.utils.ValidatorCache;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.sql.Date;
 
 /**
  * Created by Neil on 10/5/2016.
@@ -26,6 +33,9 @@ public abstract class DataPipeline
     public final String uncleanedDir;
     public final String cleanedDir;
 
+    /* Set by the retrieval phase when the vendor has not republished since the last successful run */
+    protected boolean sourceUnchanged;
+
     public DataPipeline(PipelineName pipelineName)
     {
         this.pipelineName = pipelineName;
@@ -43,10 +53,11 @@ public abstract class DataPipeline
         switch (phase)
         {
             case ALL:
-                // Delete directory in case it is still there from previous failed execution
+                // Clear directory in case it is still there from previous failed execution, keeping partial
+                // downloads that can be resumed
                 if (Files.exists(Paths.get(baseDir)))
                 {
-                    LocalFileSystemHandler.deleteDirectory(baseDir);
+                    LocalFileSystemHandler.deleteDirectoryContents(baseDir, this::isResumableArtifact);
                 }
                 if (Files.notExists(Paths.get(baseDir)))
                 {
@@ -75,6 +86,12 @@ public abstract class DataPipeline
                     Utils.insertFailureState(pipelineName, Phase.DATARETRIEVAL.name());
                     return false;
                 }
+                if (sourceUnchanged)
+                {
+                    LOGGER.info(String.format("%s source data unchanged since the last successful run. Skipping remaining phases.",
+                            pipelineName.name()));
+                    break;
+                }
             case PREPROCESS:
                 if (!executePreProcessPhase(baseDir))
                 {
@@ -110,13 +127,79 @@ public abstract class DataPipeline
         }
         LocalFileSystemHandler.deleteDirectory(baseDir);
         Utils.cleanupFailureStateTable(pipelineName);
+        ValidatorCache.getInstance().commit(pipelineName);
+        onPipelineSuccess();
 
         long elapsedTime = System.currentTimeMillis() - startTime;
         EmailHandler.sendSuccessEmail(pipelineName, Utils.formatTime(elapsedTime));
         LOGGER.info(String.format("%s data pipeline complete", pipelineName.name()));
+        PipelineMetrics.getInstance().logSnapshot(LOGGER, "http.");
+        PipelineMetrics.getInstance().logSnapshot(LOGGER, "io.");
         return true;
     }
 
+    /**
+     * Called after every phase succeeded, for pipelines that keep state that must only advance on success.
+     */
+    protected void onPipelineSuccess()
+    {
+    }
+
+    protected boolean isResumableArtifact(File file)
+    {
+        return false;
+    }
+
+    protected ShoprProductPrice createProductPrice(Date ds, String upc, Double regularPrice, Double salePrice)
+    {
+        ShoprProductPrice shoprProductPrice = new ShoprProductPrice();
+        shoprProductPrice.setDs(ds);
+        shoprProductPrice.setUpc(upc);
+        shoprProductPrice.setRegularPrice(regularPrice);
+        shoprProductPrice.setSalePrice(salePrice);
+        shoprProductPrice.setVendor(pipelineName.name());
+        return shoprProductPrice;
+    }
+
+    /**
+     * The product_info row of a projected product, from the fields both vendors name alike. Reviews and the category
+     * path are left for the vendor to set.
+     */
+    protected ShoprProductInfo createProductInfo(JsonNode product, String upc)
+    {
+        ShoprProductInfo shoprProductInfo = new ShoprProductInfo();
+        shoprProductInfo.setUpc(upc);
+        String name = JsonProjection.getText(product, "name");
+        if (name != null)
+        {
+            shoprProductInfo.setName(name.replaceAll("\\r?\\n", " "));
+        }
+        String image = JsonProjection.getText(product, "image");
+        if (image != null)
+        {
+            shoprProductInfo.setImage(image.replace("\"", ""));
+        }
+        String thumbnailImage = JsonProjection.getText(product, "thumbnailImage");
+        if (thumbnailImage != null)
+        {
+            shoprProductInfo.setThumbnail(thumbnailImage.replace("\"", ""));
+        }
+        String shortDescription = JsonProjection.getText(product, "shortDescription");
+        if (shortDescription != null)
+        {
+            shortDescription = shortDescription.replaceAll("\\r?\\n", " ");
+        }
+        shoprProductInfo.setShortDescription(shortDescription);
+        String longDescription = JsonProjection.getText(product, "longDescription");
+        if (longDescription != null)
+        {
+            longDescription = longDescription.replaceAll("\\r?\\n", " ");
+        }
+        shoprProductInfo.setLongDescription(longDescription);
+        shoprProductInfo.setVendor(pipelineName.name());
+        return shoprProductInfo;
+    }
+
     protected abstract boolean executeDataRetrievalPhase(String dataDir);
     protected abstract boolean executePreProcessPhase(String dataDir);
     protected abstract boolean executeSanitizationPhase(String dataDir);
@@ -0,0 +1,167 @@
+package shopr.productdata.pipeline;
+
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.SanitizationResult;
+import shopr.productdata.objects.SanitizationStatus;
+import shopr.productdata.utils.PipelineMetrics;
+import shopr.productdata.utils.PropertiesLoader;
+import shopr.productdata.utils.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * Sanitizes the data files of a pipeline in parallel. A file that fails fails only itself, and the phase passes while
+ * no more than <vendor>.sanitize.max.failed.files (default 0) have failed.
+ *
+ * @author Neil Allison
+ */
+class SanitizationEngine
+{
+    private static final Logger LOGGER = Logger.getLogger(SanitizationEngine.class);
+
+    private final String name;
+    private final int parallelism;
+    private final int maxFailedFiles;
+
+    SanitizationEngine(String name)
+    {
+        this.name = name;
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        parallelism = Math.max(1, Integer.parseInt(propertiesLoader.getProperty(name + ".sanitize.files.parallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        maxFailedFiles = Integer.parseInt(propertiesLoader.getProperty(name + ".sanitize.max.failed.files", "0"));
+    }
+
+    List<SanitizationResult> sanitize(File[] dataFiles, Function<File, SanitizationResult> sanitizer)
+    {
+        List<File> files = new ArrayList<>(Arrays.asList(dataFiles));
+        files.sort(Comparator.comparing(File::getName));
+        LOGGER.info(String.format("Sanitizing %d %s data files on %d threads", files.size(), name,
+                Math.min(parallelism, Math.max(1, files.size()))));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, files.size())));
+        List<SanitizationResult> results = new ArrayList<>();
+        try
+        {
+            List<Future<SanitizationResult>> pending = new ArrayList<>();
+            for (File dataFile : files)
+            {
+                pending.add(executor.submit(() -> sanitizeFile(dataFile, sanitizer)));
+            }
+            for (int i = 0; i < pending.size(); i++)
+            {
+                try
+                {
+                    results.add(pending.get(i).get());
+                }
+                catch (ExecutionException e)
+                {
+                    // sanitizeFile catches what the sanitizer throws, this is only reached on an Error
+                    results.add(new SanitizationResult(files.get(i).getName(), SanitizationStatus.FAILED, 0,
+                            String.valueOf(e.getCause())));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            for (int i = results.size(); i < files.size(); i++)
+            {
+                results.add(new SanitizationResult(files.get(i).getName(), SanitizationStatus.FAILED, 0,
+                        "interrupted"));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Logs what went wrong and whether the phase can go on with the files that did sanitize.
+     */
+    boolean isAcceptable(List<SanitizationResult> results)
+    {
+        Map<SanitizationStatus, Integer> statusCounts = new EnumMap<>(SanitizationStatus.class);
+        long rows = 0;
+        for (SanitizationResult result : results)
+        {
+            statusCounts.merge(result.getStatus(), 1, Integer::sum);
+            rows += result.getRows();
+            if (result.getStatus() == SanitizationStatus.PARTIAL || result.isFailed())
+            {
+                LOGGER.warn("Sanitization result " + result);
+            }
+        }
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.add(name + ".sanitize.rows", rows);
+        statusCounts.forEach((status, count) ->
+                metrics.add(name + ".sanitize.files." + status.name().toLowerCase(), count));
+        LOGGER.info(String.format("Sanitized %d %s data files, %d rows: %s", results.size(), name, rows, statusCounts));
+
+        if (!isWithinFailureLimit(results))
+        {
+            LOGGER.error(String.format("%d %s data files failed to sanitize, at most %d may", countFailed(results),
+                    name, maxFailedFiles));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether no more files have failed than the phase allows, so a caller sanitizing files one at a time can stop
+     * once the phase cannot pass.
+     */
+    boolean isWithinFailureLimit(List<SanitizationResult> results)
+    {
+        return countFailed(results) <= maxFailedFiles;
+    }
+
+    private static int countFailed(List<SanitizationResult> results)
+    {
+        int failed = 0;
+        for (SanitizationResult result : results)
+        {
+            if (result.isFailed())
+            {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Sanitizes one file, turning whatever the sanitizer throws into a FAILED result.
+     */
+    static SanitizationResult sanitizeFile(File dataFile, Function<File, SanitizationResult> sanitizer)
+    {
+        long startTime = System.currentTimeMillis();
+        SanitizationResult result;
+        try
+        {
+            result = sanitizer.apply(dataFile);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.error("Sanitizing data file failed: " + dataFile.getAbsolutePath(), e);
+            result = new SanitizationResult(dataFile.getName(), SanitizationStatus.FAILED, 0, e.toString());
+        }
+        result.setElapsedMillis(System.currentTimeMillis() - startTime);
+        LOGGER.debug(String.format("Sanitized %s in %s", dataFile.getName(), Utils.formatTime(result.getElapsedMillis())));
+        return result;
+    }
+}
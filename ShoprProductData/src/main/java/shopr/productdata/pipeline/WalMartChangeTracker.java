@@ -0,0 +1,110 @@
+package shopr.productdata.pipeline;
+
+import org.apache.log4j.Logger;
+import shopr.productdata.utils.LocalStateStore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Created by Neil on 11/13/2016.
+ *
+ * Measures how fast prices change in each WalMart leaf category, for WalMartCrawlPlanner, by comparing sale prices
+ * with the last committed crawl. Rates and prices are staged and only made current by commit().
+ *
+ * @author Neil Allison
+ */
+class WalMartChangeTracker
+{
+    private static final Logger LOGGER = Logger.getLogger(WalMartChangeTracker.class);
+    private static final String PRICES_STATE_NAME = "walmart-prices";
+    private static final String PENDING_PRICES_STATE_NAME = "walmart-prices.pending";
+    private static final String PAGE_FILE_SEPARATOR = "_page_";
+    private static final double SMOOTHING = 0.5;
+
+    private final Properties previousPrices = LocalStateStore.getInstance().load(PRICES_STATE_NAME);
+    private final Properties prices = new Properties();
+    private final Map<String, long[]> counts = new HashMap<>();
+
+    WalMartChangeTracker()
+    {
+        // Categories that were not crawled this run keep their old prices for the next comparison
+        prices.putAll(previousPrices);
+    }
+
+    /**
+     * The leaf category a page file was downloaded for, or null for files not named by the crawl.
+     */
+    static String getCategory(String dataFilename)
+    {
+        int separator = dataFilename.indexOf(PAGE_FILE_SEPARATOR);
+        return separator < 0 ? null : dataFilename.substring(0, separator);
+    }
+
+    /**
+     * Synchronized, because pages are sanitized in parallel.
+     */
+    synchronized void record(String category, String upc, double salePrice)
+    {
+        long[] categoryCounts = counts.computeIfAbsent(category, c -> new long[2]);
+        categoryCounts[0]++;
+        String key = category + "." + upc;
+        String previousPrice = previousPrices.getProperty(key);
+        if (previousPrice != null && Double.parseDouble(previousPrice) != salePrice)
+        {
+            categoryCounts[1]++;
+        }
+        prices.setProperty(key, String.valueOf(salePrice));
+    }
+
+    /**
+     * Stages item counts, change rates and the new price snapshot until the pipeline succeeds.
+     */
+    void stage()
+    {
+        LocalStateStore stateStore = LocalStateStore.getInstance();
+        Properties history = stateStore.load(WalMartCrawlPlanner.STATE_NAME);
+        for (Map.Entry<String, long[]> categoryCounts : counts.entrySet())
+        {
+            String category = categoryCounts.getKey();
+            long items = categoryCounts.getValue()[0];
+            long changed = categoryCounts.getValue()[1];
+            history.setProperty(WalMartCrawlPlanner.PENDING_PREFIX + WalMartCrawlPlanner.ITEMS_PREFIX + category, String.valueOf(items));
+
+            // The interval the price changes happened over: from the crawl the price snapshot is from to this one
+            String crawled = history.getProperty(WalMartCrawlPlanner.PENDING_PREFIX + WalMartCrawlPlanner.CRAWLED_PREFIX
+                    + category);
+            String previousCrawled = history.getProperty(WalMartCrawlPlanner.CRAWLED_PREFIX + category);
+            if (crawled == null || previousCrawled == null || items == 0)
+            {
+                continue;
+            }
+            double hours = (Long.parseLong(crawled) - Long.parseLong(previousCrawled)) / 3600000.0;
+            if (hours <= 0)
+            {
+                continue;
+            }
+            double changeRate = (double) changed / items / hours;
+            String previousRate = history.getProperty(WalMartCrawlPlanner.CHANGE_RATE_PREFIX + category);
+            if (previousRate != null)
+            {
+                changeRate = SMOOTHING * changeRate + (1 - SMOOTHING) * Double.parseDouble(previousRate);
+            }
+            history.setProperty(WalMartCrawlPlanner.PENDING_PREFIX + WalMartCrawlPlanner.CHANGE_RATE_PREFIX + category,
+                    String.valueOf(changeRate));
+            LOGGER.debug(String.format("Category %s: %d of %d prices changed in %.1f hours, change rate %.5f per hour",
+                    category, changed, items, hours, changeRate));
+        }
+        stateStore.store(WalMartCrawlPlanner.STATE_NAME, history);
+        stateStore.store(PENDING_PRICES_STATE_NAME, prices);
+    }
+
+    /**
+     * Makes the staged price snapshot current. The staged rates are committed with the crawl plan state.
+     */
+    static void commit()
+    {
+        LocalStateStore.getInstance().promote(PENDING_PRICES_STATE_NAME, PRICES_STATE_NAME);
+    }
+}
@@ -0,0 +1,195 @@
+package shopr.productdata.pipeline;
+
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.CrawlCoverage;
+import shopr.productdata.utils.PipelineMetrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by Neil on 11/14/2016.
+ *
+ * Keeps the WalMart crawl inside a wall clock budget by pre-empting the lowest priority chains while the projected
+ * finish runs past the deadline, and records how far every category got for the coverage report.
+ *
+ * @author Neil Allison
+ */
+class WalMartCrawlDeadline
+{
+    private static final Logger LOGGER = Logger.getLogger(WalMartCrawlDeadline.class);
+    private static final int MIN_PROJECTION_PAGES = 20;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long deadlineMillis;
+    private final Map<String, Chain> chains = new LinkedHashMap<>();
+    private long pagesFetched;
+
+    /**
+     * budgetMillis of 0 or less turns pre-emption off.
+     */
+    WalMartCrawlDeadline(long budgetMillis)
+    {
+        this.deadlineMillis = budgetMillis > 0 ? startMillis + budgetMillis : Long.MAX_VALUE;
+    }
+
+    boolean isEnabled()
+    {
+        return deadlineMillis != Long.MAX_VALUE;
+    }
+
+    long getRemainingMillis()
+    {
+        return deadlineMillis - System.currentTimeMillis();
+    }
+
+    synchronized void register(String category, double priority, int expectedPages)
+    {
+        chains.put(category, new Chain(priority, expectedPages));
+    }
+
+    synchronized void recordPage(String category)
+    {
+        chains.get(category).pages++;
+        pagesFetched++;
+    }
+
+    synchronized void finish(String category, CrawlCoverage coverage)
+    {
+        chains.get(category).coverage = coverage;
+    }
+
+    /**
+     * Returns false once the category has been pre-empted, or when the deadline has passed. Chains ask before every
+     * page, so a pre-empted chain stops between pages and everything it wrote is whole.
+     */
+    synchronized boolean shouldContinue(String category)
+    {
+        Chain chain = chains.get(category);
+        if (chain.preempted || !isEnabled())
+        {
+            return !chain.preempted;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= deadlineMillis)
+        {
+            preempt(category, chain, "the deadline has passed");
+            return false;
+        }
+        if (pagesFetched >= MIN_PROJECTION_PAGES)
+        {
+            double millisPerPage = (double) (now - startMillis) / pagesFetched;
+            long remainingPages = 0;
+            for (Chain unfinished : chains.values())
+            {
+                if (unfinished.isUnfinished())
+                {
+                    remainingPages += unfinished.getRemainingPages();
+                }
+            }
+            while (now + remainingPages * millisPerPage > deadlineMillis)
+            {
+                Map.Entry<String, Chain> victim = findLowestPriorityUnfinished();
+                if (victim == null)
+                {
+                    break;
+                }
+                preempt(victim.getKey(), victim.getValue(), String.format("projected finish %ds past the deadline",
+                        Math.round((now + remainingPages * millisPerPage - deadlineMillis) / 1000)));
+                remainingPages -= victim.getValue().getRemainingPages();
+            }
+        }
+        return !chain.preempted;
+    }
+
+    /**
+     * Writes one tab separated line per category and publishes the totals under walmart.crawl.coverage.*.
+     */
+    synchronized boolean writeCoverageReport(File reportFile)
+    {
+        Map<CrawlCoverage, Integer> totals = new EnumMap<>(CrawlCoverage.class);
+        try (Writer writer = new FileWriter(reportFile))
+        {
+            writer.write("category\tpriority\tcoverage\tpages\texpected_pages\n");
+            for (Map.Entry<String, Chain> entry : chains.entrySet())
+            {
+                Chain chain = entry.getValue();
+                writer.write(String.format("%s\t%s\t%s\t%d\t%d\n", entry.getKey(),
+                        Double.isInfinite(chain.priority) ? "mandatory" : String.format("%.4f", chain.priority),
+                        chain.coverage, chain.pages, chain.expectedPages));
+                totals.merge(chain.coverage, 1, Integer::sum);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to write the WalMart crawl coverage report: " + reportFile, e);
+            return false;
+        }
+        for (CrawlCoverage coverage : CrawlCoverage.values())
+        {
+            PipelineMetrics.getInstance().setGauge("walmart.crawl.coverage." + coverage.name().toLowerCase(),
+                    totals.getOrDefault(coverage, 0));
+        }
+        LOGGER.info(String.format("WalMart crawl coverage: %s, %d pages. Report: %s", totals, pagesFetched,
+                reportFile.getAbsolutePath()));
+        return true;
+    }
+
+    private Map.Entry<String, Chain> findLowestPriorityUnfinished()
+    {
+        Map.Entry<String, Chain> lowest = null;
+        int unfinished = 0;
+        for (Map.Entry<String, Chain> entry : chains.entrySet())
+        {
+            if (!entry.getValue().isUnfinished())
+            {
+                continue;
+            }
+            unfinished++;
+            if (lowest == null || entry.getValue().priority < lowest.getValue().priority)
+            {
+                lowest = entry;
+            }
+        }
+        // The last unfinished chain, the highest priority one, is only ever stopped by the deadline itself
+        return unfinished > 1 ? lowest : null;
+    }
+
+    private void preempt(String category, Chain chain, String reason)
+    {
+        chain.preempted = true;
+        PipelineMetrics.getInstance().increment("walmart.crawl.preempted");
+        LOGGER.warn(String.format("Pre-empting category %s after %d pages: %s", category, chain.pages, reason));
+    }
+
+    private static final class Chain
+    {
+        private final double priority;
+        private final int expectedPages;
+        private int pages;
+        private boolean preempted;
+        private CrawlCoverage coverage = CrawlCoverage.NOT_STARTED;
+
+        private Chain(double priority, int expectedPages)
+        {
+            this.priority = priority;
+            this.expectedPages = expectedPages;
+        }
+
+        private boolean isUnfinished()
+        {
+            return !preempted && coverage == CrawlCoverage.NOT_STARTED;
+        }
+
+        private long getRemainingPages()
+        {
+            // A chain past its expected size still has at least the page it is on
+            return Math.max(1, expectedPages - pages);
+        }
+    }
+}
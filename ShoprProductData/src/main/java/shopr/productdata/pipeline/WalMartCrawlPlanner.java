@@ -0,0 +1,266 @@
+package shopr.productdata.pipeline;
+
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.WalMartTaxonomyTree;
+import shopr.productdata.objects.WalMartTaxonomyTreeCategory;
+import shopr.productdata.utils.LocalStateStore;
+import shopr.productdata.utils.PropertiesLoader;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Neil on 11/13/2016.
+ *
+ * Expands the configured WalMart categories into the leaves of the taxonomy tree, so every leaf is its own short
+ * cursor chain instead of a few long ones that run into the page cap, and picks the leaves this run can afford.
+ *
+ * @author Neil Allison
+ */
+class WalMartCrawlPlanner
+{
+    private static final Logger LOGGER = Logger.getLogger(WalMartCrawlPlanner.class);
+    static final String STATE_NAME = "walmart-crawl-plan";
+    static final String PENDING_PREFIX = "pending.";
+    static final String PAGES_PREFIX = "pages.";
+    static final String CRAWLED_PREFIX = "crawled.";
+    static final String ITEMS_PREFIX = "items.";
+    static final String CHANGE_RATE_PREFIX = "changeRate.";
+    static final int MAX_PAGES = 400;
+
+    private final Properties history = LocalStateStore.getInstance().load(STATE_NAME);
+    private final Map<String, Integer> pageCounts = new ConcurrentHashMap<>();
+    private final Set<String> truncated = ConcurrentHashMap.newKeySet();
+    private final Set<String> abandoned = ConcurrentHashMap.newKeySet();
+    private final Set<String> preempted = ConcurrentHashMap.newKeySet();
+    private final Map<String, Double> priorities = new HashMap<>();
+    private final long maxStalenessMillis = TimeUnit.DAYS.toMillis(Long.parseLong(
+            PropertiesLoader.getInstance().getProperty("walmart.crawl.max.staleness.days", "7")));
+
+    /**
+     * Returns the leaf categories to crawl, mapped to how many pages each may fetch, in crawl order. Categories
+     * missing from the taxonomy tree, or all of them when there is no tree, are crawled as they are.
+     */
+    LinkedHashMap<String, Integer> plan(String[] configuredCategories, WalMartTaxonomyTree taxonomyTree,
+                                        long requestBudget)
+    {
+        Set<String> leaves = new LinkedHashSet<>();
+        boolean hasTree = taxonomyTree != null && taxonomyTree.getCategories() != null;
+        if (!hasTree)
+        {
+            LOGGER.warn(String.format("No usable WalMart taxonomy tree, crawling all %d configured categories whole. "
+                    + "They may run into the %d page cap.", configuredCategories.length, MAX_PAGES));
+        }
+        for (String category : configuredCategories)
+        {
+            WalMartTaxonomyTreeCategory node = hasTree ? findCategory(taxonomyTree.getCategories(), category) : null;
+            if (node == null)
+            {
+                if (hasTree)
+                {
+                    LOGGER.warn("Category not found in the WalMart taxonomy tree, crawling it whole: " + category);
+                }
+                leaves.add(category);
+                continue;
+            }
+            int before = leaves.size();
+            collectLeaves(node, leaves);
+            LOGGER.info(String.format("Category %s (%s) expands to %d leaves", category, node.getName(),
+                    leaves.size() - before));
+        }
+
+        // Leaves are picked by expected changed prices per page until the budget is spent. Leaves without history or
+        // older than walmart.crawl.max.staleness.days are always picked.
+        long now = System.currentTimeMillis();
+        List<String> candidates = new ArrayList<>(leaves);
+        candidates.sort(Comparator.comparingDouble((String leaf) -> getWorthPerPage(leaf, now)).reversed());
+
+        Map<String, Integer> selected = new HashMap<>();
+        long remainingBudget = requestBudget;
+        int skipped = 0;
+        for (String leaf : candidates)
+        {
+            int depth = getDepth(leaf);
+            boolean mandatory = getWorthPerPage(leaf, now) == Double.POSITIVE_INFINITY;
+            if (!mandatory && remainingBudget < depth)
+            {
+                if (remainingBudget <= 0)
+                {
+                    skipped++;
+                    continue;
+                }
+                // The leaf at the edge of the budget is crawled as deep as what is left allows
+                depth = (int) remainingBudget;
+            }
+            selected.put(leaf, depth);
+            priorities.put(leaf, getWorthPerPage(leaf, now));
+            remainingBudget -= depth;
+        }
+
+        // Largest first, so the longest chains start early instead of finishing last on their own
+        List<String> order = new ArrayList<>(selected.keySet());
+        order.sort(Comparator.comparingInt(this::getExpectedPages).reversed());
+        LinkedHashMap<String, Integer> plan = new LinkedHashMap<>();
+        for (String leaf : order)
+        {
+            plan.put(leaf, selected.get(leaf));
+        }
+        LOGGER.info(String.format("WalMart crawl plan: %d of %d leaf categories, up to %d pages, budget %d requests. "
+                + "%d stable leaves skipped this run", plan.size(), leaves.size(),
+                plan.values().stream().mapToLong(Integer::longValue).sum(), requestBudget, skipped));
+        return plan;
+    }
+
+    /**
+     * Records how many pages a leaf had. A leaf cut off by its page limit only raises its stored count.
+     */
+    void recordPages(String category, int pages, boolean complete)
+    {
+        pageCounts.put(category, pages);
+        if (!complete)
+        {
+            truncated.add(category);
+        }
+    }
+
+    void markAbandoned(String category)
+    {
+        abandoned.add(category);
+    }
+
+    Set<String> getAbandoned()
+    {
+        return abandoned;
+    }
+
+    void markPreempted(String category)
+    {
+        preempted.add(category);
+    }
+
+    /**
+     * A planned leaf's worth per page, infinite for leaves that are always crawled.
+     */
+    double getPriority(String category)
+    {
+        return priorities.getOrDefault(category, 0.0);
+    }
+
+    /**
+     * Stages page counts and crawl times of the leaves that finished, for commit() once the pipeline succeeds.
+     * Abandoned and pre-empted leaves keep their old history, a partial count would make them look small and a
+     * partial crawl would make them look fresh.
+     */
+    void stage()
+    {
+        // Whatever a failed run left staged is not going to be committed
+        history.stringPropertyNames().stream().filter(key -> key.startsWith(PENDING_PREFIX)).forEach(history::remove);
+        String now = String.valueOf(System.currentTimeMillis());
+        for (Map.Entry<String, Integer> pageCount : pageCounts.entrySet())
+        {
+            String category = pageCount.getKey();
+            if (abandoned.contains(category) || preempted.contains(category))
+            {
+                continue;
+            }
+            int pages = pageCount.getValue();
+            if (truncated.contains(category) && getExpectedPages(category) != Integer.MAX_VALUE)
+            {
+                pages = Math.max(pages, getExpectedPages(category));
+            }
+            history.setProperty(PENDING_PREFIX + PAGES_PREFIX + category, String.valueOf(pages));
+            history.setProperty(PENDING_PREFIX + CRAWLED_PREFIX + category, now);
+        }
+        LocalStateStore.getInstance().store(STATE_NAME, history);
+    }
+
+    /**
+     * Makes the history staged by this run and by WalMartChangeTracker current.
+     */
+    static void commit()
+    {
+        LocalStateStore stateStore = LocalStateStore.getInstance();
+        Properties history = stateStore.load(STATE_NAME);
+        boolean changed = false;
+        for (String key : history.stringPropertyNames())
+        {
+            if (key.startsWith(PENDING_PREFIX))
+            {
+                history.setProperty(key.substring(PENDING_PREFIX.length()), history.getProperty(key));
+                history.remove(key);
+                changed = true;
+            }
+        }
+        if (changed)
+        {
+            stateStore.store(STATE_NAME, history);
+        }
+    }
+
+    /**
+     * Expected changed prices since the last crawl per page it costs to crawl the leaf again.
+     */
+    private double getWorthPerPage(String category, long now)
+    {
+        String crawled = history.getProperty(CRAWLED_PREFIX + category);
+        String changeRate = history.getProperty(CHANGE_RATE_PREFIX + category);
+        if (crawled == null || changeRate == null || now - Long.parseLong(crawled) >= maxStalenessMillis)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        double hoursSinceCrawl = (now - Long.parseLong(crawled)) / 3600000.0;
+        long items = Long.parseLong(history.getProperty(ITEMS_PREFIX + category, "0"));
+        double expectedChanges = items * (1 - Math.exp(-Double.parseDouble(changeRate) * hoursSinceCrawl));
+        return expectedChanges / Math.max(1, getExpectedPages(category));
+    }
+
+    /**
+     * Page limit for a leaf: its last page count with some room to grow, or the hard cap without history.
+     */
+    private int getDepth(String category)
+    {
+        int expectedPages = getExpectedPages(category);
+        return expectedPages == Integer.MAX_VALUE ? MAX_PAGES
+                : Math.min(MAX_PAGES, (int) Math.ceil(expectedPages * 1.5) + 1);
+    }
+
+    /**
+     * The leaf's page count on its last crawl, Integer.MAX_VALUE without history.
+     */
+    int getExpectedPages(String category)
+    {
+        String pages = history.getProperty(PAGES_PREFIX + category);
+        return pages == null ? Integer.MAX_VALUE : Integer.parseInt(pages);
+    }
+
+    private static WalMartTaxonomyTreeCategory findCategory(List<WalMartTaxonomyTreeCategory> categories, String id)
+    {
+        for (WalMartTaxonomyTreeCategory category : categories)
+        {
+            if (id.equals(category.getId()))
+            {
+                return category;
+            }
+            // Ids are paths of their ancestors' ids, so only one branch can contain the category
+            if (id.startsWith(category.getId() + "_"))
+            {
+                return findCategory(category.getChildren(), id);
+            }
+        }
+        return null;
+    }
+
+    private static void collectLeaves(WalMartTaxonomyTreeCategory category, Set<String> leaves)
+    {
+        if (category.getChildren() == null || category.getChildren().isEmpty())
+        {
+            leaves.add(category.getId());
+            return;
+        }
+        for (WalMartTaxonomyTreeCategory child : category.getChildren())
+        {
+            collectLeaves(child, leaves);
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package shopr.productdata.pipeline;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.dataformat.csv.CsvMapper;
-import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -16,11 +20,28 @@ import shopr.productdata.objects.*;
 import shopr.productdata.utils.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Neil on 9/4/2016.
@@ -30,6 +51,12 @@ import java.util.stream.Collectors;
 public class WalMartDataPipeline extends DataPipeline
 {
     private static final String TAXONOMY_TREE_FILENAME = "walmart_taxonomy.json";
+    private static final int PAGE_DICTIONARY_SAMPLES = 64;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private static final JsonProjection ITEM_PROJECTION = JsonProjection.of("upc", "salePrice", "msrp", "name", "image",
+            "thumbnailImage", "shortDescription", "longDescription", "categoryPath");
 
     private String[] categories = {
             "4044_90548",           // Appliances
@@ -45,126 +72,494 @@ public class WalMartDataPipeline extends DataPipeline
             "3944_1078524",         // iPad and Tablets
     };
 
+    /* Raw pages are staged zlib compressed with a dictionary trained on earlier pages */
+    private final boolean compressPages;
+    private final DictionaryCompressor pageCompressor;
+
     public WalMartDataPipeline(PipelineName pipelineName)
     {
         super(pipelineName);
         this.LOGGER = Logger.getLogger(this.getClass());
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        compressPages = Boolean.parseBoolean(propertiesLoader.getProperty("walmart.page.compression.enabled", "true"));
+        pageCompressor = new DictionaryCompressor("walmart-pages",
+                Integer.parseInt(propertiesLoader.getProperty("walmart.page.compression.level", "6")));
     }
 
     public boolean executeDataRetrievalPhase(String destinationDir)
     {
         LOGGER.info("Phase 1: Starting data retrieval");
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        String apiSuffix = String.format("/v1/paginated/items?apiKey=%s&format=json&category=",
-                PropertiesLoader.getInstance().getProperty("walmart.apikey"));
-        int numPages = 400;
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        ApiKeyPool keyPool = new ApiKeyPool("walmart");
+        WalMartCrawlPlanner crawlPlanner = new WalMartCrawlPlanner();
+        // Leave some of the window's quota for retries and for the runs that come after this one
+        long requestBudget = Long.parseLong(propertiesLoader.getProperty("walmart.crawl.request.budget",
+                String.valueOf(keyPool.getRemainingBudget() * 9 / 10)));
+        LinkedHashMap<String, Integer> crawlPlan = crawlPlanner.plan(categories, downloadTaxonomyTree(destinationDir, keyPool),
+                requestBudget);
+        int parallelism = Math.max(1, Integer.parseInt(PropertiesLoader.getInstance().getProperty(
+                "walmart.crawl.parallelism", String.valueOf(categories.length))));
+        WalMartCrawlDeadline crawlDeadline = new WalMartCrawlDeadline(TimeUnit.MINUTES.toMillis(Long.parseLong(
+                propertiesLoader.getProperty("walmart.crawl.deadline.minutes", "0"))));
+        List<String> crawlOrder = new ArrayList<>(crawlPlan.keySet());
+        if (crawlDeadline.isEnabled())
+        {
+            // Against a deadline the most valuable leaves go first, so pre-emption only ever costs the least
+            crawlOrder.sort(Comparator.comparingDouble(crawlPlanner::getPriority).reversed());
+            LOGGER.info(String.format("WalMart crawl deadline in %s", Utils.formatTime(crawlDeadline.getRemainingMillis())));
+        }
+        for (String category : crawlOrder)
+        {
+            crawlDeadline.register(category, crawlPlanner.getPriority(category), Math.min(crawlPlan.get(category),
+                    crawlPlanner.getExpectedPages(category)));
+        }
+        RawArchiveSink rawArchive = Constants.ENABLE_WALMART_UNCLEANED_S3_UPLOAD ? RawArchiveSink.open(
+                "product-data/walmart/uncleaned-data/" + Utils.createFormattedDateString() + "_uncleaned-data.zip") : null;
+        ZipOutputStream rawArchiveZip = rawArchive == null ? null : new ZipOutputStream(rawArchive);
+        if (compressPages)
+        {
+            // Recorded before any page is written, so a retry that reads them later still finds the dictionary
+            pageCompressor.markUsed();
+        }
+        if (rawArchiveZip != null && compressPages && pageCompressor.getDictionary() != null)
+        {
+            // The archived pages cannot be read without the dictionary they were compressed with
+            try
+            {
+                byte[] dictionary = pageCompressor.getDictionary();
+                writeArchiveEntry(rawArchiveZip, "dictionaries/" + pageCompressor.getDictionaryFilename(), dictionary,
+                        dictionary.length, true);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to add the page dictionary to the uncleaned data archive", e);
+            }
+        }
 
-        for (String category : categories)
+        // Every chain can hold a second connection for the page it prefetches
+        HttpTransport.getInstance().ensureMaxPerRoute(Constants.WALMART_API_BASE, parallelism * 2);
+        CloseableHttpClient httpClient = HttpTransport.getInstance().getClient();
+        ExecutorService crawlExecutor = Executors.newFixedThreadPool(parallelism);
+        ExecutorService prefetchExecutor = Executors.newCachedThreadPool();
+        LOGGER.info(String.format("Crawling %d WalMart categories with %d workers", crawlPlan.size(), parallelism));
+        long startTime = System.currentTimeMillis();
+
+        boolean retrieved = true;
+        try
         {
-            int pageNumber = 0;
-            String requestUrl = Constants.WALMART_API_BASE + apiSuffix + category;
-            String nextPageSuffix = "";
-            for (int i = 0; i < numPages; i++)
+            AimdConcurrencyLimiter concurrencyLimiter = new AimdConcurrencyLimiter("walmart",
+                    Integer.parseInt(propertiesLoader.getProperty("walmart.concurrency.initial", "2")),
+                    Integer.parseInt(propertiesLoader.getProperty("walmart.concurrency.min", "1")),
+                    Integer.parseInt(propertiesLoader.getProperty("walmart.concurrency.max",
+                            String.valueOf(parallelism * 2))),
+                    Double.parseDouble(propertiesLoader.getProperty("walmart.concurrency.backoff.ratio", "0.5")),
+                    Double.parseDouble(propertiesLoader.getProperty("walmart.concurrency.latency.tolerance", "2.0")),
+                    Double.parseDouble(propertiesLoader.getProperty("walmart.concurrency.max.error.rate", "0.05")));
+            RateLimitedRequestExecutor requestExecutor = new RateLimitedRequestExecutor(httpClient, concurrencyLimiter,
+                    Integer.parseInt(propertiesLoader.getProperty("walmart.retry.max.attempts", "5")),
+                    Long.parseLong(propertiesLoader.getProperty("walmart.retry.base.delay.ms", "500")),
+                    Long.parseLong(propertiesLoader.getProperty("walmart.retry.max.delay.ms", "30000")));
+            if (Boolean.parseBoolean(propertiesLoader.getProperty("walmart.hedge.enabled", "false")))
+            {
+                requestExecutor.enableHedging(prefetchExecutor,
+                        Double.parseDouble(propertiesLoader.getProperty("walmart.hedge.percentile", "95")),
+                        Double.parseDouble(propertiesLoader.getProperty("walmart.hedge.max.ratio", "0.05")),
+                        "walmart");
+            }
+            List<Future<Boolean>> crawls = new ArrayList<>();
+            for (String category : crawlOrder)
             {
-                if (nextPageSuffix == null)
+                int maxPages = crawlPlan.get(category);
+                CircuitBreaker breaker = new CircuitBreaker("category " + category,
+                        Integer.parseInt(propertiesLoader.getProperty("walmart.breaker.failure.threshold", "5")),
+                        Long.parseLong(propertiesLoader.getProperty("walmart.breaker.open.ms", "60000")),
+                        Integer.parseInt(propertiesLoader.getProperty("walmart.breaker.max.trips", "3")));
+                crawls.add(crawlExecutor.submit(() -> crawlCategory(requestExecutor, prefetchExecutor, breaker,
+                        keyPool, category, maxPages, rawArchiveZip, crawlPlanner, crawlDeadline)));
+            }
+            for (Future<Boolean> crawl : crawls)
+            {
+                if (!crawl.get())
                 {
+                    // Stop the remaining chains so they give their connections back to the shared pool
+                    crawlExecutor.shutdownNow();
+                    prefetchExecutor.shutdownNow();
+                    retrieved = false;
                     break;
                 }
-                HttpGet request = new HttpGet(requestUrl);
-                HttpResponse httpResponse;
-                try
-                {
-                    httpResponse = httpClient.execute(request);
-                }
-                catch (IOException e)
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.error("Interrupted waiting for WalMart category crawls", e);
+            Thread.currentThread().interrupt();
+            retrieved = false;
+        }
+        catch (ExecutionException e)
+        {
+            LOGGER.error("WalMart category crawl failed", e.getCause());
+            retrieved = false;
+        }
+        finally
+        {
+            crawlExecutor.shutdownNow();
+            prefetchExecutor.shutdownNow();
+        }
+
+        keyPool.saveUsage();
+        crawlPlanner.stage();
+        crawlDeadline.writeCoverageReport(LocalStateStore.getInstance().getFile("walmart-crawl-coverage.tsv"));
+        PipelineMetrics.getInstance().logSnapshot(LOGGER, "walmart.");
+
+        if (retrieved && !crawlPlanner.getAbandoned().isEmpty())
+        {
+            LOGGER.warn("WalMart categories abandoned after repeated failures, their data is incomplete: "
+                    + crawlPlanner.getAbandoned());
+            if (crawlPlanner.getAbandoned().size() == crawlPlan.size())
+            {
+                LOGGER.error("Every WalMart category was abandoned");
+                retrieved = false;
+            }
+        }
+
+        if (!retrieved)
+        {
+            if (rawArchive != null)
+            {
+                rawArchive.abort();
+            }
+            return false;
+        }
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        LOGGER.info(String.format("Finished WalMart category crawl. Elapsed Time: %s", Utils.formatTime(elapsedTime)));
+        if (compressPages && pageCompressor.isRetrainDue(TimeUnit.DAYS.toMillis(Long.parseLong(
+                propertiesLoader.getProperty("walmart.page.dictionary.retrain.days", "7")))))
+        {
+            trainPageDictionary();
+        }
+
+        if (rawArchiveZip != null)
+        {
+            try
+            {
+                rawArchiveZip.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Finishing the uncleaned data archive failed", e);
+                rawArchive.abort();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Follows one category's nextPage cursor chain. Page files are numbered per category, so their names do not
+     * depend on how the workers interleave. The cursor is picked out of the body by a JsonCursorScanner while the page
+     * is being written, and the next page is requested on prefetchExecutor right away, so it downloads while the rest
+     * of the current body is still arriving.
+     *
+     * Retries never use up the page budget. When they run out the chain pauses until the category's breaker closes
+     * and asks for the same page again. A category whose breaker keeps tripping is marked abandoned in crawlPlanner
+     * and the crawl of the other categories carries on.
+     *
+     * The chain keeps the key it took from keyPool to the end, because nextPage cursors are only valid for the key that
+     * issued them.
+     *
+     * Before every page the chain checks with crawlDeadline, which may pre-empt it.
+     */
+    private boolean crawlCategory(RateLimitedRequestExecutor requestExecutor, ExecutorService prefetchExecutor,
+                                  CircuitBreaker breaker, ApiKeyPool keyPool, String category, int maxPages,
+                                  ZipOutputStream rawArchiveZip, WalMartCrawlPlanner crawlPlanner,
+                                  WalMartCrawlDeadline crawlDeadline)
+    {
+        if (!crawlDeadline.shouldContinue(category))
+        {
+            crawlDeadline.finish(category, CrawlCoverage.PREEMPTED);
+            crawlPlanner.markPreempted(category);
+            return true;
+        }
+        ApiKeyPool.ApiKey apiKey = keyPool.select();
+        if (apiKey == null)
+        {
+            LOGGER.warn("Abandoning category " + category + ", every WalMart API key is retired for this quota window");
+            crawlPlanner.markAbandoned(category);
+            crawlDeadline.finish(category, CrawlCoverage.ABANDONED);
+            return true;
+        }
+        LOGGER.info(String.format("Category %s: using API key %s", category, apiKey.getId()));
+        try
+        {
+            return followCursorChain(requestExecutor, prefetchExecutor, breaker, apiKey, category, maxPages,
+                    rawArchiveZip, crawlPlanner, crawlDeadline);
+        }
+        finally
+        {
+            keyPool.release(apiKey);
+        }
+    }
+
+    private boolean followCursorChain(RateLimitedRequestExecutor requestExecutor, ExecutorService prefetchExecutor,
+                                      CircuitBreaker breaker, ApiKeyPool.ApiKey apiKey, String category,
+                                      int maxPages, ZipOutputStream rawArchiveZip, WalMartCrawlPlanner crawlPlanner,
+                                      WalMartCrawlDeadline crawlDeadline)
+    {
+        int pageNumber = 0;
+        boolean morePages = true;
+        long startTime = System.currentTimeMillis();
+        String requestUrl = ApiKeyPool.withApiKey(Constants.WALMART_API_BASE
+                + "/v1/paginated/items?format=json&category=" + category, apiKey);
+        Future<HttpResponse> pendingResponse = requestPage(requestExecutor, prefetchExecutor, breaker, apiKey, requestUrl);
+        while (pendingResponse != null)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                discardResponse(pendingResponse);
+                break;
+            }
+            HttpResponse httpResponse;
+            try
+            {
+                httpResponse = pendingResponse.get();
+            }
+            catch (ExecutionException e)
+            {
+                if (!(e.getCause() instanceof IOException))
                 {
-                    LOGGER.error("Exception executing WalMart paginated products download request", e);
+                    LOGGER.error("Exception executing WalMart paginated products download request for category "
+                            + category, e.getCause());
                     return false;
                 }
+                LOGGER.warn(String.format("WalMart page request for category %s failed: %s", category, e.getCause()));
+                httpResponse = null;
+            }
+            catch (InterruptedException e)
+            {
+                LOGGER.warn("Interrupted waiting for WalMart page of category " + category);
+                Thread.currentThread().interrupt();
+                discardResponse(pendingResponse);
+                return false;
+            }
+            pendingResponse = null;
 
-                StatusLine statusLine = httpResponse.getStatusLine();
-
-                if (statusLine.getStatusCode() != 200)
+            if (httpResponse == null
+                    || RateLimitedRequestExecutor.isRetryable(httpResponse.getStatusLine().getStatusCode()))
+            {
+                if (httpResponse != null)
                 {
-                    if (statusLine.getStatusCode() == 504)
-                    {
-                        LOGGER.warn("Request timed out: " + statusLine);
-                        continue;
-                    }
-                    else
-                    {
-                        LOGGER.error("WalMart Paginated Products API request did not succeed: " + statusLine);
-                        return false;
-                    }
+                    EntityUtils.consumeQuietly(httpResponse.getEntity());
                 }
-
-                String dataFilename = category + "_page_" + (pageNumber++) + ".json";
-                String dataFilePath = Paths.get(uncleanedDir, dataFilename).toString();
-                try (
-                        InputStream is = httpResponse.getEntity().getContent();
-                        FileOutputStream fos = new FileOutputStream(dataFilePath)
-                )
+                if (breaker.isExhausted())
                 {
-                    LOGGER.info("Downloading data to file: " + dataFilePath);
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while((bytesRead = is.read(buffer)) > 0)
-                    {
-                        fos.write(buffer, 0, bytesRead);
-                    }
-                    fos.flush();
-                    fos.close();
+                    LOGGER.warn(String.format("Abandoning category %s after %d pages", category, pageNumber));
+                    crawlPlanner.markAbandoned(category);
+                    crawlPlanner.recordPages(category, pageNumber, false);
+                    crawlDeadline.finish(category, CrawlCoverage.ABANDONED);
+                    return true;
                 }
-                catch (IOException e)
+                long pauseMillis = breaker.getRemainingOpenMillis();
+                if (!crawlDeadline.shouldContinue(category) || crawlDeadline.getRemainingMillis() <= pauseMillis)
                 {
-                    LOGGER.error("Exception retrieving/writing WalMart paginated products response content", e);
-                    return false;
+                    LOGGER.warn(String.format("Stopping category %s at page %d, it cannot wait %dms for its breaker "
+                            + "before the deadline", category, pageNumber, pauseMillis));
+                    crawlPlanner.markPreempted(category);
+                    crawlPlanner.recordPages(category, pageNumber, false);
+                    crawlDeadline.finish(category, CrawlCoverage.PREEMPTED);
+                    return true;
                 }
-
+                LOGGER.warn(String.format("Pausing category %s for %dms at page %d", category, pauseMillis, pageNumber));
                 try
                 {
-                    JSONParser jsonParser = new JSONParser();
-                    FileReader reader = new FileReader(new File(dataFilePath));
-                    JSONObject productsDataObject = (JSONObject) jsonParser.parse(reader);
-                    nextPageSuffix = (String) productsDataObject.get("nextPage");
-                    requestUrl = Constants.WALMART_API_BASE + nextPageSuffix;
+                    TimeUnit.MILLISECONDS.sleep(pauseMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
-                catch (FileNotFoundException e)
+                pendingResponse = requestPage(requestExecutor, prefetchExecutor, breaker, apiKey, requestUrl);
+                continue;
+            }
+
+            StatusLine statusLine = httpResponse.getStatusLine();
+
+            if (statusLine.getStatusCode() != 200)
+            {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                LOGGER.error(String.format("WalMart Paginated Products API request did not succeed for category %s: %s",
+                        category, statusLine));
+                return false;
+            }
+
+            String dataFilename = category + "_page_" + (pageNumber++) + ".json"
+                    + (compressPages ? DictionaryCompressor.COMPRESSED_SUFFIX : "");
+            String dataFilePath = Paths.get(uncleanedDir, dataFilename).toString();
+            ByteArrayOutputStream archiveBuffer = rawArchiveZip == null ? null : new ByteArrayOutputStream();
+            JsonCursorScanner cursorScanner = new JsonCursorScanner("nextPage");
+            AtomicReference<Future<HttpResponse>> prefetchedResponse = new AtomicReference<>();
+            boolean withinPageLimit = pageNumber < maxPages;
+            String nextPageSuffix;
+            try (
+                    InputStream is = httpResponse.getEntity().getContent();
+                    FileOutputStream fos = new FileOutputStream(dataFilePath)
+            )
+            {
+                LOGGER.debug("Downloading data to file: " + dataFilePath);
+                try (OutputStream pageOut = openPageOutput(fos, archiveBuffer))
                 {
-                    LOGGER.warn("Could not find data file: " + dataFilePath);
+                    ChannelIO.copy(is, pageOut, "walmart.pages", (buffer, offset, length) ->
+                    {
+                        // Request the next page once its cursor has streamed in, while this page is still arriving
+                        if (!cursorScanner.isDone() && cursorScanner.update(buffer, offset, length)
+                                && cursorScanner.getValue() != null && withinPageLimit
+                                && crawlDeadline.shouldContinue(category))
+                        {
+                            prefetchedResponse.set(requestPage(requestExecutor, prefetchExecutor, breaker, apiKey,
+                                    ApiKeyPool.withApiKey(Constants.WALMART_API_BASE + cursorScanner.getValue(),
+                                            apiKey)));
+                        }
+                    });
                 }
-                catch (ParseException e)
+                nextPageSuffix = cursorScanner.getValue();
+                if (prefetchedResponse.get() != null)
                 {
-                    LOGGER.warn("Parsing JSON failed while retrieving next results page.", e);
+                    requestUrl = ApiKeyPool.withApiKey(Constants.WALMART_API_BASE + nextPageSuffix, apiKey);
+                    pendingResponse = prefetchedResponse.get();
                 }
-                catch (IOException e)
+                // pageOut is closed, so the compressed stream is finished and the buffer holds the whole file
+                if (archiveBuffer != null)
                 {
-                    LOGGER.warn("Reading data file failed: " + dataFilePath);
+                    writeArchiveEntry(rawArchiveZip, dataFilename, archiveBuffer.toByteArray(), archiveBuffer.size(),
+                            compressPages);
                 }
             }
+            catch (IOException e)
+            {
+                LOGGER.error("Exception retrieving/writing WalMart paginated products response content", e);
+                discardResponse(prefetchedResponse.get());
+                return false;
+            }
+
+            LOGGER.info(String.format("Category %s: downloaded page %d (%s)", category, pageNumber,
+                    nextPageSuffix == null ? "last page" : "more pages available"));
+            morePages = nextPageSuffix != null;
+            crawlDeadline.recordPage(category);
         }
 
-        LOGGER.info("Uploading uncleaned data to S3");
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        LOGGER.info(String.format("Finished category %s: %d pages. Elapsed Time: %s", category, pageNumber,
+                Utils.formatTime(elapsedTime)));
+        boolean complete = !morePages;
+        if (complete)
+        {
+            crawlDeadline.finish(category, CrawlCoverage.COMPLETE);
+        }
+        else if (pageNumber < maxPages)
+        {
+            // Stopped by the deadline rather than by the page limit
+            crawlPlanner.markPreempted(category);
+            crawlDeadline.finish(category, CrawlCoverage.PREEMPTED);
+        }
+        else
+        {
+            LOGGER.warn(String.format("Category %s stopped at its %d page limit, its data may be incomplete", category,
+                    maxPages));
+            crawlDeadline.finish(category, CrawlCoverage.PAGE_LIMIT);
+        }
+        crawlPlanner.recordPages(category, pageNumber, complete);
+        return true;
+    }
 
-        String zipFileName = Utils.createFormattedDateString() + "_uncleaned-data.zip";
-        String zipFilePath = baseDir + File.separator + zipFileName;
+    /**
+     * Where a page's bytes go: its staging file and, when archiving, a buffer holding the same bytes for the archive.
+     * Compressed pages are compressed once and both get the compressed bytes.
+     */
+    private OutputStream openPageOutput(OutputStream fileOut, ByteArrayOutputStream archiveBuffer)
+    {
+        OutputStream pageOut = archiveBuffer == null ? fileOut : new TeeOutputStream(fileOut, archiveBuffer);
+        return compressPages ? pageCompressor.compress(pageOut) : pageOut;
+    }
 
-        try
+    /**
+     * Adds an entry to the shared raw archive. Data that is already compressed is stored as it is instead of being
+     * deflated a second time.
+     */
+    private static void writeArchiveEntry(ZipOutputStream rawArchiveZip, String name, byte[] data, int length,
+                                          boolean stored) throws IOException
+    {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored)
         {
-            LocalFileSystemHandler.zipFiles(zipFilePath, uncleanedDir);
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(length);
+            entry.setCompressedSize(length);
+            entry.setCrc(crc.getValue());
         }
-        catch (IOException e)
+        synchronized (rawArchiveZip)
+        {
+            rawArchiveZip.putNextEntry(entry);
+            rawArchiveZip.write(data, 0, length);
+            rawArchiveZip.closeEntry();
+        }
+    }
+
+    /**
+     * Trains a new page dictionary on pages spread evenly over this crawl, for the next runs to compress with.
+     */
+    private void trainPageDictionary()
+    {
+        File[] pageFiles = (new File(uncleanedDir)).listFiles((dir, name) -> name.contains("_page_"));
+        if (pageFiles == null || pageFiles.length == 0)
+        {
+            return;
+        }
+        Arrays.sort(pageFiles);
+        List<File> samples = new ArrayList<>();
+        int step = Math.max(1, pageFiles.length / PAGE_DICTIONARY_SAMPLES);
+        for (int i = 0; i < pageFiles.length && samples.size() < PAGE_DICTIONARY_SAMPLES; i += step)
         {
-            LOGGER.warn("Compressing uncleaned data files to zip directory failed: " + zipFilePath + ", " + destinationDir);
+            samples.add(pageFiles[i]);
         }
+        pageCompressor.train(samples);
+    }
+
+    private static Future<HttpResponse> requestPage(RateLimitedRequestExecutor requestExecutor,
+                                                    ExecutorService prefetchExecutor, CircuitBreaker breaker,
+                                                    ApiKeyPool.ApiKey apiKey, String requestUrl)
+    {
+        return prefetchExecutor.submit(() -> requestExecutor.execute(requestUrl, breaker, apiKey));
+    }
 
-        if (Constants.ENABLE_WALMART_UNCLEANED_S3_UPLOAD && !S3Handler.uploadToS3(Constants.SHOPR_S3_DATA_BUCKET,
-                "product-data/walmart/uncleaned-data/" + zipFileName, new File(zipFilePath)))
+    /**
+     * Cancels a prefetched page the chain no longer needs and hands its connection back to the pool.
+     */
+    private static void discardResponse(Future<HttpResponse> pendingResponse)
+    {
+        if (pendingResponse == null || pendingResponse.cancel(true))
+        {
+            return;
+        }
+        try
         {
-            LOGGER.warn("S3 uncleaned data upload failure");
+            EntityUtils.consumeQuietly(pendingResponse.get().getEntity());
         }
+        catch (InterruptedException | ExecutionException | CancellationException e)
+        {
+            // Nothing was checked out of the pool
+        }
+    }
 
-        return true;
+    @Override
+    protected void onPipelineSuccess()
+    {
+        WalMartCrawlPlanner.commit();
+        WalMartChangeTracker.commit();
+        // The staged pages are gone by now, archived pages carry their own copy of the dictionary
+        pageCompressor.deleteDictionariesUnusedFor(TimeUnit.DAYS.toMillis(30));
     }
 
     protected boolean executePreProcessPhase(String dataDirectory)
@@ -177,9 +572,7 @@ public class WalMartDataPipeline extends DataPipeline
     {
         LOGGER.info("Phase 3: Starting data sanitization");
 
-        CsvMapper csvMapper = new CsvMapper();
-
-        JSONParser jsonParser = new JSONParser();
+        WalMartChangeTracker changeTracker = new WalMartChangeTracker();
 
         File dataDir = new File(dataDirectory);
         File[] dataFiles = dataDir.listFiles();
@@ -200,149 +593,119 @@ public class WalMartDataPipeline extends DataPipeline
             }
         }
 
-        for (File dataFile : dataFiles)
+        SanitizationEngine engine = new SanitizationEngine("walmart");
+        if (!engine.isAcceptable(engine.sanitize(dataFiles,
+                dataFile -> sanitizePage(dataFile, changeTracker))))
         {
-            List<ShoprProductPrice> productPriceList = new ArrayList<>();
-            List<ShoprProductInfo> productInfoList = new ArrayList<>();
-            String dataFilePath = dataFile.getAbsolutePath();
-            LOGGER.info("Parsing data file: " + dataFilePath);
-            try
+            return false;
+        }
+
+        changeTracker.stage();
+        return true;
+    }
+
+    /**
+     * Streams the items of one page to its cleaned files, reading only the fields the cleaned rows use.
+     */
+    private SanitizationResult sanitizePage(File dataFile, WalMartChangeTracker changeTracker)
+    {
+        String dataFilePath = dataFile.getAbsolutePath();
+        String category = WalMartChangeTracker.getCategory(dataFile.getName());
+        LOGGER.info("Parsing data file: " + dataFilePath);
+        String filename = DictionaryCompressor.getUncompressedName(dataFile.getName()).replace(".json", ".nsv");
+        String priceOutFilePath = createCleanedProductPriceDataFilePath(filename);
+        String infoOutFilePath = createCleanedProductInfoDataFilePath(filename);
+        SanitizationResult result = new SanitizationResult(dataFile.getName(), SanitizationStatus.COMPLETE, 0, null);
+        try (
+                Reader reader = new InputStreamReader(pageCompressor.open(dataFile), StandardCharsets.UTF_8);
+                JsonParser parser = JSON_MAPPER.getFactory().createParser(reader)
+        )
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                LOGGER.error("Parsing data file failed, it is not a JSON object: " + dataFilePath);
+                result.setStatus(SanitizationStatus.PARTIAL);
+                result.setMessage("not a JSON object");
+                return result;
+            }
+            if (parser.nextToken() == JsonToken.END_OBJECT)
             {
-                FileReader reader = new FileReader(dataFile);
-                JSONObject productDataFileObject = (JSONObject) jsonParser.parse(reader);
-                if (productDataFileObject.size() == 0)
+                LOGGER.warn("The data file contained no items: " + dataFilePath);
+                result.setStatus(SanitizationStatus.EMPTY);
+                return result;
+            }
+            try (
+                    NsvRowEncoder priceWriter = new NsvRowEncoder(new FileOutputStream(priceOutFilePath));
+                    NsvRowEncoder infoWriter = new NsvRowEncoder(new FileOutputStream(infoOutFilePath))
+            )
+            {
+                if (!JsonProjection.seekArrayField(parser, "items"))
                 {
-                    LOGGER.warn("The data file contained no items: " + dataFilePath);
-                    reader.close();
-                    continue;
+                    LOGGER.error("No items array in data file: " + dataFilePath);
+                    result.setStatus(SanitizationStatus.PARTIAL);
+                    result.setMessage("no items array");
+                    return result;
                 }
-                JSONArray productDataArray = (JSONArray) productDataFileObject.get("items");
                 Date ds = Date.valueOf(Utils.createFormattedDateString());
-                for (Object productObject : productDataArray)
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null)
                 {
-                    JSONObject product = (JSONObject) productObject;
+                    if (token != JsonToken.START_OBJECT)
+                    {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    JsonNode product = ITEM_PROJECTION.readObject(parser);
 
-                    String upc= (String) product.get("upc");
+                    String upc = JsonProjection.getText(product, "upc");
                     if (upc == null)
                     {
                         continue;
                     }
 
                     /* Data for table product_price */
-                    ShoprProductPrice shoprProductPrice = new ShoprProductPrice();
-                    shoprProductPrice.setDs(ds);
-                    shoprProductPrice.setUpc(upc);
-                    Double salePrice = (Double) product.get("salePrice");
+                    Double salePrice = JsonProjection.getDouble(product, "salePrice");
                     if (salePrice == null)
                     {
                         salePrice = -0.01;
                     }
-                    Double regularPrice = (Double) product.get("msrp");
+                    Double regularPrice = JsonProjection.getDouble(product, "msrp");
                     if (regularPrice == null)
                     {
                         regularPrice = salePrice;
                     }
-                    shoprProductPrice.setRegularPrice(regularPrice);
-                    shoprProductPrice.setSalePrice(salePrice);
-                    shoprProductPrice.setVendor(pipelineName.name());
-
-                    /* Data for table product_info */
-                    ShoprProductInfo shoprProductInfo = new ShoprProductInfo();
-                    shoprProductInfo.setUpc(upc);
-                    String name = (String) product.get("name");
-                    if (name != null)
-                    {
-                        shoprProductInfo.setName(name.replaceAll("\\r?\\n", " "));
-                    }
-                    String image = (String) product.get("image");
-                    if (image != null)
-                    {
-                        shoprProductInfo.setImage(image.replace("\"", ""));
-                    }
-                    String thumbnailImage = (String) product.get("thumbnailImage");
-                    if (thumbnailImage != null)
-                    {
-                        shoprProductInfo.setThumbnail(thumbnailImage.replace("\"", ""));
-                    }
-                    String shortDescription = (String) product.get("shortDescription");
-                    if (shortDescription != null)
-                    {
-                        shortDescription = shortDescription.replaceAll("\\r?\\n", " ");
-                    }
-                    shoprProductInfo.setShortDescription(shortDescription);
-                    String longDescription = (String) product.get("longDescription");
-                    if (longDescription != null)
+                    ShoprProductPrice shoprProductPrice = createProductPrice(ds, upc, regularPrice, salePrice);
+                    if (category != null)
                     {
-                        longDescription = longDescription.replaceAll("\\r?\\n", " ");
+                        changeTracker.record(category, upc, salePrice);
                     }
-                    shoprProductInfo.setLongDescription(longDescription);
+
+                    /* Data for table product_info */
+                    ShoprProductInfo shoprProductInfo = createProductInfo(product, upc);
                     shoprProductInfo.setCustomerReviewCount(0L);
                     shoprProductInfo.setCustomerReviewAverage(null);
-                    shoprProductInfo.setVendor(pipelineName.name());
-                    shoprProductInfo.setCategoryPath((String) product.get("categoryPath"));
+                    shoprProductInfo.setCategoryPath(JsonProjection.getText(product, "categoryPath"));
 
-                    productPriceList.add(shoprProductPrice);
-                    productInfoList.add(shoprProductInfo);
+                    priceWriter.write(shoprProductPrice);
+                    infoWriter.write(shoprProductInfo);
+                    result.setRows(result.getRows() + 1);
                 }
-                reader.close();
-            }
-            catch (ParseException e)
-            {
-                LOGGER.error("Parsing data file failed: " + dataFilePath, e);
-            }
-            catch (IOException e)
-            {
-                LOGGER.error("Opening data file failed: " + dataFilePath, e);
-                return false;
-            }
-
-            String filename = dataFile.getName().replace(".json", ".nsv");
-            String priceOutFilePath = createCleanedProductPriceDataFilePath(filename);
-            File outFile = new File(priceOutFilePath);
-            CsvSchema schema = csvMapper.schemaFor(ShoprProductPrice.class);
-            schema = schema.withColumnSeparator('\0');
-            ObjectWriter objectWriter = csvMapper.writer(schema);
-            try (
-                    FileOutputStream fos = new FileOutputStream(outFile);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, 8192);
-                    OutputStreamWriter osw = new OutputStreamWriter(bos, "UTF-8")
-            )
-            {
-                objectWriter.writeValue(osw, productPriceList);
-            }
-            catch (FileNotFoundException e)
-            {
-                LOGGER.warn("Could not find file: " + priceOutFilePath, e);
-            }
-            catch (IOException e)
-            {
-                LOGGER.error("Exception while writing products to file: " + priceOutFilePath, e);
-            }
-
-            String infoOutFilePath = createCleanedProductInfoDataFilePath(filename);
-            outFile = new File(infoOutFilePath);
-            schema = csvMapper.schemaFor(ShoprProductInfo.class);
-            schema = schema.withColumnSeparator('\0');
-            objectWriter = csvMapper.writer(schema);
-            try (
-                    FileOutputStream fos = new FileOutputStream(outFile);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, 8192);
-                    OutputStreamWriter osw = new OutputStreamWriter(bos, "UTF-8")
-            )
-            {
-                objectWriter.writeValue(osw, productInfoList);
-            }
-            catch (FileNotFoundException e)
-            {
-                LOGGER.warn("Could not find file: " + infoOutFilePath, e);
-            }
-            catch (IOException e)
-            {
-                LOGGER.error("Exception while writing products to file: " + infoOutFilePath, e);
             }
         }
-
-        return true;
+        catch (JsonProcessingException e)
+        {
+            // Items before the malformed one are kept
+            LOGGER.error("Parsing data file failed: " + dataFilePath, e);
+            result.setStatus(SanitizationStatus.PARTIAL);
+            result.setMessage(e.getOriginalMessage());
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Reading or writing data file failed: " + dataFilePath, e);
+            result.setStatus(SanitizationStatus.FAILED);
+            result.setMessage(e.toString());
+        }
+        return result;
     }
 
     protected boolean executeS3UploadPhase(String dataDirectory)
@@ -423,44 +786,83 @@ public class WalMartDataPipeline extends DataPipeline
         return String.format("%s%s%s%s%s%s", cleanedDir, File.separator, "product_info", File.separator, "info_", filename);
     }
 
-    @SuppressWarnings("unused")
-    protected WalMartTaxonomyTree downloadTaxonomyTree(String destinationDir)
+    protected WalMartTaxonomyTree downloadTaxonomyTree(String destinationDir, ApiKeyPool keyPool)
     {
         LOGGER.info("Starting WalMart taxonomy tree download");
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        HttpGet request = new HttpGet(getTaxonomyApiUrlString());
+        // Validators are kept under the URL without a key, so they survive key rotation
+        String taxonomyUrl = Constants.WALMART_TAXONOMY_API_BASE;
+        File cachedTaxonomyTreeFile = LocalStateStore.getInstance().getFile(TAXONOMY_TREE_FILENAME);
+        ValidatorCacheEntry previousValidators = ValidatorCache.getInstance().get(taxonomyUrl);
+        ApiKeyPool.ApiKey apiKey = keyPool.select();
+        if (apiKey == null)
+        {
+            LOGGER.error("No WalMart API key left for the taxonomy tree download");
+            return null;
+        }
+        HttpClient httpClient = HttpTransport.getInstance().getClient();
+        HttpGet request = new HttpGet(getTaxonomyApiUrlString(apiKey));
+        if (cachedTaxonomyTreeFile.exists())
+        {
+            ValidatorCache.getInstance().applyConditionalHeaders(request, taxonomyUrl);
+        }
         HttpResponse httpResponse;
         try
         {
+            apiKey.getTokenBucket().acquire();
+            apiKey.recordRequest();
             httpResponse = httpClient.execute(request);
+            if (httpResponse.getStatusLine().getStatusCode() == 429)
+            {
+                apiKey.recordThrottled();
+            }
+            else
+            {
+                apiKey.recordSuccess();
+            }
         }
         catch (IOException e)
         {
             LOGGER.error("Exception executing WalMart taxonomy tree download request", e);
             return null;
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted waiting to request the WalMart taxonomy tree", e);
+            return null;
+        }
+        finally
+        {
+            keyPool.release(apiKey);
+        }
 
         LOGGER.info(httpResponse.getStatusLine());
 
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if (statusCode == 304 && cachedTaxonomyTreeFile.exists())
+        {
+            LOGGER.info("WalMart taxonomy tree not modified, using cached copy: " + cachedTaxonomyTreeFile);
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            return parseTaxonomyTree(cachedTaxonomyTreeFile.getAbsolutePath());
+        }
+        if (statusCode != 200)
+        {
+            LOGGER.error("WalMart taxonomy API request did not succeed: " + httpResponse.getStatusLine());
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            return null;
+        }
+
         String taxonomyTreeFilename = TAXONOMY_TREE_FILENAME;
         String taxonomyTreeFilePath = Paths.get(destinationDir, taxonomyTreeFilename).toString();
+        MessageDigest contentDigest = Utils.createContentDigest();
 
         try (
-                InputStream is = httpResponse.getEntity().getContent();
+                InputStream is = new DigestInputStream(httpResponse.getEntity().getContent(), contentDigest);
                 FileOutputStream fos = new FileOutputStream(taxonomyTreeFilePath)
         )
         {
             LOGGER.info("Writing WalMart taxonomy tree to file...");
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-
-            while ((bytesRead = is.read(buffer)) > 0)
-            {
-                fos.write(buffer, 0, bytesRead);
-            }
-
-            fos.flush();
-            fos.close();
+            ChannelIO.copy(is, fos, "walmart.taxonomy");
         }
         catch (FileNotFoundException e)
         {
@@ -473,28 +875,75 @@ public class WalMartDataPipeline extends DataPipeline
             return null;
         }
         LOGGER.info("Finished WalMart taxonomy tree download");
-        return parseTaxonomyTree(taxonomyTreeFilePath);
+
+        WalMartTaxonomyTree taxonomyTree = parseTaxonomyTree(taxonomyTreeFilePath);
+        if (taxonomyTree == null)
+        {
+            // Keep the cached copy and its validators, so the next run downloads the tree again
+            if (cachedTaxonomyTreeFile.exists())
+            {
+                LOGGER.warn("Falling back to the cached WalMart taxonomy tree: " + cachedTaxonomyTreeFile);
+                return parseTaxonomyTree(cachedTaxonomyTreeFile.getAbsolutePath());
+            }
+            return null;
+        }
+        String contentHash = Utils.toHexString(contentDigest.digest());
+        if (previousValidators != null && contentHash.equals(previousValidators.getContentHash())
+                && cachedTaxonomyTreeFile.exists())
+        {
+            LOGGER.info("WalMart taxonomy tree content is identical to the cached copy");
+        }
+        else
+        {
+            try
+            {
+                ChannelIO.copy(new File(taxonomyTreeFilePath), cachedTaxonomyTreeFile, "walmart.taxonomy.cache");
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to cache WalMart taxonomy tree: " + cachedTaxonomyTreeFile, e);
+                return taxonomyTree;
+            }
+        }
+        Header eTag = httpResponse.getFirstHeader(HttpHeaders.ETAG);
+        Header lastModified = httpResponse.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        ValidatorCache.getInstance().put(taxonomyUrl, new ValidatorCacheEntry(eTag == null ? null : eTag.getValue(),
+                lastModified == null ? null : lastModified.getValue(), contentHash));
+        return taxonomyTree;
     }
 
+    /**
+     * Returns null if the file does not hold a taxonomy tree.
+     */
     protected WalMartTaxonomyTree parseTaxonomyTree(String taxonomyTreeFilePath)
     {
         WalMartTaxonomyTree taxonomyTree = new WalMartTaxonomyTree();
         JSONParser jsonParser = new JSONParser();
 
-        try
+        try (Reader reader = new FileReader(new File(taxonomyTreeFilePath)))
         {
-            JSONObject categoriesObject = (JSONObject) jsonParser.parse(new FileReader(new File(taxonomyTreeFilePath)));
-            JSONArray categories = (JSONArray) categoriesObject.get("categories");
+            Object categoriesObject = jsonParser.parse(reader);
+            Object categories = categoriesObject instanceof JSONObject
+                    ? ((JSONObject) categoriesObject).get("categories") : null;
+            if (!(categories instanceof JSONArray))
+            {
+                LOGGER.error("WalMart taxonomy tree has no categories array: " + taxonomyTreeFilePath);
+                return null;
+            }
 
-            List<WalMartTaxonomyTreeCategory> categoriesList = traverseTree(categories);
+            List<WalMartTaxonomyTreeCategory> categoriesList = traverseTree((JSONArray) categories);
             taxonomyTree.setCategories(categoriesList);
         }
         catch (IOException | ParseException e)
         {
-            e.printStackTrace();
+            LOGGER.error("Failed to parse WalMart taxonomy tree: " + taxonomyTreeFilePath, e);
+            return null;
         }
 
-        System.out.print(taxonomyTree.toString());
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug(taxonomyTree.toString());
+        }
 
         return taxonomyTree;
     }
@@ -518,8 +967,8 @@ public class WalMartDataPipeline extends DataPipeline
         return categories;
     }
 
-    private String getTaxonomyApiUrlString()
+    private static String getTaxonomyApiUrlString(ApiKeyPool.ApiKey apiKey)
     {
-        return Constants.WALMART_TAXONOMY_API_BASE + PropertiesLoader.getInstance().getProperty("walmart.apikey");
+        return ApiKeyPool.withApiKey(Constants.WALMART_TAXONOMY_API_BASE, apiKey);
     }
 }
@@ -0,0 +1,224 @@
+package shopr.productdata.utils;
+
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.RequestOutcome;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Neil on 11/10/2016.
+ *
+ * Bounds the number of requests in flight and adapts the bound with additive increase / multiplicative decrease.
+ * A healthy window of completed requests raises the limit by one, throttling, timeouts, latency spikes or errors
+ * cut it by backoffRatio.
+ *
+ * @author Neil Allison
+ */
+public class AimdConcurrencyLimiter
+{
+    private static final Logger LOGGER = Logger.getLogger(AimdConcurrencyLimiter.class);
+    private static final int MIN_WINDOW_SAMPLES = 20;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final double maxErrorRate;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    private int limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+    private long[] windowLatencies = new long[MIN_WINDOW_SAMPLES];
+    private int windowSamples;
+    private int windowErrors;
+    private double baselineP95Millis = -1;
+
+    public AimdConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                                  double latencyTolerance, double maxErrorRate)
+    {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.maxErrorRate = maxErrorRate;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.lastDecreaseNanos = System.nanoTime();
+        metrics.setGauge(metricName("limit"), limit);
+    }
+
+    public int getLimit()
+    {
+        lock.lock();
+        try
+        {
+            return limit;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a slot is free. Returns the start time to hand back to release().
+     */
+    public long acquire() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (inFlight >= limit)
+            {
+                slotAvailable.await();
+            }
+            inFlight++;
+            metrics.setGauge(metricName("inflight"), inFlight);
+            return System.nanoTime();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot only if one is free right now. Returns the start time to hand back to release(), or -1.
+     */
+    public long tryAcquire()
+    {
+        lock.lock();
+        try
+        {
+            if (inFlight >= limit)
+            {
+                return -1;
+            }
+            inFlight++;
+            metrics.setGauge(metricName("inflight"), inFlight);
+            return System.nanoTime();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot without judging the request, for one that was aborted before it completed.
+     */
+    public void abandon()
+    {
+        lock.lock();
+        try
+        {
+            inFlight--;
+            metrics.setGauge(metricName("inflight"), inFlight);
+            slotAvailable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void release(long startNanos, RequestOutcome outcome)
+    {
+        long now = System.nanoTime();
+        lock.lock();
+        try
+        {
+            inFlight--;
+            metrics.setGauge(metricName("inflight"), inFlight);
+
+            // Requests started before the last cut were sent at the old limit, so one burst of 429s only cuts once
+            if ((outcome == RequestOutcome.THROTTLED || outcome == RequestOutcome.TIMEOUT) && startNanos > lastDecreaseNanos)
+            {
+                decrease(outcome == RequestOutcome.THROTTLED ? "throttled" : "timeout", now);
+            }
+            else if (outcome != RequestOutcome.THROTTLED && outcome != RequestOutcome.TIMEOUT)
+            {
+                recordSample(TimeUnit.NANOSECONDS.toMillis(now - startNanos), outcome == RequestOutcome.ERROR, now);
+            }
+            slotAvailable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void recordSample(long latencyMillis, boolean error, long now)
+    {
+        if (windowSamples == windowLatencies.length)
+        {
+            windowLatencies = Arrays.copyOf(windowLatencies, windowLatencies.length * 2);
+        }
+        windowLatencies[windowSamples++] = latencyMillis;
+        if (error)
+        {
+            windowErrors++;
+        }
+        if (windowSamples < Math.max(MIN_WINDOW_SAMPLES, limit))
+        {
+            return;
+        }
+
+        Arrays.sort(windowLatencies, 0, windowSamples);
+        long p95Millis = windowLatencies[(int) Math.ceil(windowSamples * 0.95) - 1];
+        double errorRate = (double) windowErrors / windowSamples;
+        metrics.setGauge(metricName("p95.ms"), p95Millis);
+        metrics.setGauge(metricName("error.rate.pct"), Math.round(errorRate * 100));
+
+        if (errorRate > maxErrorRate)
+        {
+            decrease(String.format("errors %.0f%%", errorRate * 100), now);
+        }
+        else if (baselineP95Millis > 0 && p95Millis > baselineP95Millis * latencyTolerance)
+        {
+            decrease(String.format("latency p95 %dms over baseline %.0fms", p95Millis, baselineP95Millis), now);
+        }
+        else
+        {
+            baselineP95Millis = baselineP95Millis < 0 ? p95Millis : 0.8 * baselineP95Millis + 0.2 * p95Millis;
+            if (limit < maxLimit)
+            {
+                limit++;
+                metrics.increment(metricName("increase"));
+                metrics.setGauge(metricName("limit"), limit);
+                LOGGER.info(String.format("%s concurrency raised to %d (p95 %dms, errors %.0f%%)", name, limit, p95Millis,
+                        errorRate * 100));
+            }
+        }
+        resetWindow();
+    }
+
+    private void decrease(String reason, long now)
+    {
+        int previousLimit = limit;
+        limit = Math.max(minLimit, (int) (limit * backoffRatio));
+        lastDecreaseNanos = now;
+        resetWindow();
+        metrics.increment(metricName("decrease." + reason.split(" ")[0]));
+        metrics.setGauge(metricName("limit"), limit);
+        LOGGER.info(String.format("%s concurrency cut from %d to %d: %s", name, previousLimit, limit, reason));
+    }
+
+    private void resetWindow()
+    {
+        windowSamples = 0;
+        windowErrors = 0;
+    }
+
+    private String metricName(String suffix)
+    {
+        return name + ".concurrency." + suffix;
+    }
+}
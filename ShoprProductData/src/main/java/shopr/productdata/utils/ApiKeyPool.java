@@ -0,0 +1,266 @@
+package shopr.productdata.utils;
+
+import org.apache.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Created by Neil on 11/12/2016.
+ *
+ * Pool of API keys for one vendor, read from <vendor>.apikeys (comma separated) or the single <vendor>.apikey, each
+ * with its own token bucket and request budget per quota window. Keys are only logged and stored by a fingerprint.
+ *
+ * @author Neil Allison
+ */
+public class ApiKeyPool
+{
+    private static final Logger LOGGER = Logger.getLogger(ApiKeyPool.class);
+    private static final Pattern API_KEY_PARAMETER = Pattern.compile("([?&]apiKey=)[^&]*");
+
+    private final String vendor;
+    private final String stateName;
+    private final long windowMillis;
+    private final List<ApiKey> keys = new ArrayList<>();
+    private long windowStart;
+
+    public ApiKeyPool(String vendor)
+    {
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        this.vendor = vendor;
+        this.stateName = vendor + "-api-keys";
+        this.windowMillis = TimeUnit.HOURS.toMillis(Long.parseLong(
+                propertiesLoader.getProperty(vendor + ".apikey.window.hours", "24")));
+        long budget = Long.parseLong(propertiesLoader.getProperty(vendor + ".apikey.window.budget", "5000"));
+        int retireAfterThrottles = Integer.parseInt(propertiesLoader.getProperty(vendor + ".apikey.retire.throttles", "10"));
+        double permitsPerSecond = Double.parseDouble(propertiesLoader.getProperty(vendor + ".rate.limit.per.second", "5"));
+        int burst = Integer.parseInt(propertiesLoader.getProperty(vendor + ".rate.limit.burst", "5"));
+
+        String keyList = propertiesLoader.getProperty(vendor + ".apikeys", propertiesLoader.getProperty(vendor + ".apikey", ""));
+        for (String value : keyList.split(","))
+        {
+            if (!value.trim().isEmpty())
+            {
+                keys.add(new ApiKey(value.trim(), TokenBucket.forKey(value.trim(), permitsPerSecond, burst), budget,
+                        retireAfterThrottles));
+            }
+        }
+        loadUsage();
+        LOGGER.info(String.format("%s API key pool: %d keys, %d requests per key per window", vendor, keys.size(), budget));
+    }
+
+    public List<ApiKey> getKeys()
+    {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Picks the key with the most budget left per active chain and counts a new chain against it. Returns null once
+     * every key is retired.
+     */
+    public synchronized ApiKey select()
+    {
+        rollWindow();
+        long now = System.currentTimeMillis();
+        ApiKey best = null;
+        double bestShare = -1;
+        for (ApiKey key : keys)
+        {
+            if (key.isRetired(now))
+            {
+                continue;
+            }
+            double share = (double) key.getRemainingBudget() / (key.activeChains.get() + 1);
+            if (share > bestShare)
+            {
+                best = key;
+                bestShare = share;
+            }
+        }
+        if (best != null)
+        {
+            best.activeChains.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Requests left in the current window across the keys that are not retired.
+     */
+    public synchronized long getRemainingBudget()
+    {
+        rollWindow();
+        long now = System.currentTimeMillis();
+        long remaining = 0;
+        for (ApiKey key : keys)
+        {
+            if (!key.isRetired(now))
+            {
+                remaining += key.getRemainingBudget();
+            }
+        }
+        return remaining;
+    }
+
+    public void release(ApiKey key)
+    {
+        key.activeChains.decrementAndGet();
+    }
+
+    /**
+     * Stores usage for the current window and publishes per key metrics.
+     */
+    public synchronized void saveUsage()
+    {
+        Properties state = new Properties();
+        state.setProperty("windowStart", String.valueOf(windowStart));
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        for (ApiKey key : keys)
+        {
+            state.setProperty(key.id + ".used", String.valueOf(key.used.get()));
+            state.setProperty(key.id + ".retiredUntil", String.valueOf(key.retiredUntil));
+            metrics.setGauge(String.format("%s.apikey.%s.used", vendor, key.id), key.used.get());
+            metrics.setGauge(String.format("%s.apikey.%s.throttled", vendor, key.id), key.throttled.get());
+        }
+        LocalStateStore.getInstance().store(stateName, state);
+    }
+
+    /**
+     * Points a URL, including cursor URLs handed back by the vendor, at the given key. Cursors only stay valid for
+     * the key that issued them, so every page of a chain has to go out with the same key.
+     */
+    public static String withApiKey(String url, ApiKey key)
+    {
+        Matcher matcher = API_KEY_PARAMETER.matcher(url);
+        if (matcher.find())
+        {
+            return matcher.replaceFirst("$1" + Matcher.quoteReplacement(key.getValue()));
+        }
+        return url + (url.contains("?") ? "&" : "?") + "apiKey=" + key.getValue();
+    }
+
+    /**
+     * Usage is kept in the local state store so that retries and later runs within the same window see what has
+     * already been spent.
+     */
+    private void loadUsage()
+    {
+        Properties state = LocalStateStore.getInstance().load(stateName);
+        windowStart = Long.parseLong(state.getProperty("windowStart", "0"));
+        if (rollWindow())
+        {
+            return;
+        }
+        for (ApiKey key : keys)
+        {
+            key.used.set(Long.parseLong(state.getProperty(key.id + ".used", "0")));
+            key.retiredUntil = Long.parseLong(state.getProperty(key.id + ".retiredUntil", "0"));
+        }
+    }
+
+    private boolean rollWindow()
+    {
+        long now = System.currentTimeMillis();
+        if (now < windowStart + windowMillis)
+        {
+            return false;
+        }
+        windowStart = now;
+        for (ApiKey key : keys)
+        {
+            key.used.set(0);
+            key.retiredUntil = 0;
+        }
+        return true;
+    }
+
+    public final class ApiKey
+    {
+        private final String value;
+        private final String id;
+        private final TokenBucket tokenBucket;
+        private final long budget;
+        private final int retireAfterThrottles;
+        private final AtomicLong used = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicInteger consecutiveThrottles = new AtomicInteger();
+        private final AtomicInteger activeChains = new AtomicInteger();
+        private volatile long retiredUntil;
+
+        private ApiKey(String value, TokenBucket tokenBucket, long budget, int retireAfterThrottles)
+        {
+            this.value = value;
+            this.id = Utils.toHexString(Utils.createContentDigest().digest(value.getBytes(StandardCharsets.UTF_8)))
+                    .substring(0, 8);
+            this.tokenBucket = tokenBucket;
+            this.budget = budget;
+            this.retireAfterThrottles = retireAfterThrottles;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public TokenBucket getTokenBucket()
+        {
+            return tokenBucket;
+        }
+
+        public long getRemainingBudget()
+        {
+            return Math.max(0, budget - used.get());
+        }
+
+        public boolean isRetired(long now)
+        {
+            return now < retiredUntil;
+        }
+
+        public void recordRequest()
+        {
+            if (used.incrementAndGet() >= budget)
+            {
+                retire("request budget used up");
+            }
+        }
+
+        public void recordSuccess()
+        {
+            consecutiveThrottles.set(0);
+        }
+
+        public void recordThrottled()
+        {
+            throttled.incrementAndGet();
+            if (consecutiveThrottles.incrementAndGet() >= retireAfterThrottles)
+            {
+                retire(consecutiveThrottles.get() + " consecutive 429s");
+            }
+        }
+
+        private void retire(String reason)
+        {
+            long windowEnd = windowStart + windowMillis;
+            if (retiredUntil < windowEnd)
+            {
+                retiredUntil = windowEnd;
+                PipelineMetrics.getInstance().increment(vendor + ".apikey.retired");
+                LOGGER.warn(String.format("Retiring %s API key %s until the quota window ends: %s", vendor, id, reason));
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package shopr.productdata.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Neil on 11/16/2016.
+ *
+ * The byte copies the pipeline is made of, through pooled buffers and counted under io.<name>.* in PipelineMetrics.
+ *
+ * @author Neil Allison
+ */
+public final class ChannelIO
+{
+    private static final int BUFFER_BYTES = Integer.parseInt(
+            PropertiesLoader.getInstance().getProperty("io.buffer.bytes", "262144"));
+    /* Pooled so parallel downloads and extractions do not each allocate a fresh buffer per stream */
+    private static final BlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<>(Integer.parseInt(
+            PropertiesLoader.getInstance().getProperty("io.buffer.pool.size", "32")));
+
+    public interface ChunkListener
+    {
+        /**
+         * Called after each chunk has been written, with the bytes it held.
+         */
+        void onChunk(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private ChannelIO()
+    {
+    }
+
+    public static long copy(InputStream in, OutputStream out, String name) throws IOException
+    {
+        return copy(in, out, name, null);
+    }
+
+    /**
+     * Copies until the end of in. Each chunk goes out as soon as it is read, so a listener sees a response as it
+     * arrives.
+     */
+    public static long copy(InputStream in, OutputStream out, String name, ChunkListener listener) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        ByteBuffer buffer = acquireBuffer();
+        try
+        {
+            byte[] array = buffer.array();
+            int bytesRead;
+            while ((bytesRead = in.read(array)) >= 0)
+            {
+                if (bytesRead == 0)
+                {
+                    continue;
+                }
+                out.write(array, 0, bytesRead);
+                bytes += bytesRead;
+                if (listener != null)
+                {
+                    listener.onChunk(array, 0, bytesRead);
+                }
+            }
+        }
+        finally
+        {
+            releaseBuffer(buffer);
+            record(name, bytes, startNanos);
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies from in into channel starting at position, until the end of in or until maxBytes have been copied when
+     * maxBytes is not negative. Writes are positional, so several copies can fill one channel at once.
+     */
+    public static long copy(InputStream in, FileChannel channel, long position, long maxBytes, String name,
+                            ChunkListener listener) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        ByteBuffer buffer = acquireBuffer();
+        try
+        {
+            byte[] array = buffer.array();
+            while (maxBytes < 0 || bytes < maxBytes)
+            {
+                int length = maxBytes < 0 ? array.length : (int) Math.min(array.length, maxBytes - bytes);
+                int bytesRead = in.read(array, 0, length);
+                if (bytesRead < 0)
+                {
+                    break;
+                }
+                ((Buffer) buffer).clear().limit(bytesRead);
+                while (buffer.hasRemaining())
+                {
+                    position += channel.write(buffer, position);
+                }
+                bytes += bytesRead;
+                if (listener != null && bytesRead > 0)
+                {
+                    listener.onChunk(array, 0, bytesRead);
+                }
+            }
+        }
+        finally
+        {
+            releaseBuffer(buffer);
+            record(name, bytes, startNanos);
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies a whole file into another file, replacing it. Goes through FileChannel.transferTo, never the heap.
+     */
+    public static long copy(File source, File destination, String name) throws IOException
+    {
+        try (
+                FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+        )
+        {
+            return transfer(in, out, name);
+        }
+    }
+
+    /**
+     * Copies the rest of a file channel into out with transferTo.
+     */
+    public static long transfer(FileChannel in, WritableByteChannel out, String name) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        try
+        {
+            long size = in.size();
+            long position = in.position();
+            while (position < size)
+            {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0)
+                {
+                    break;
+                }
+                position += transferred;
+                bytes += transferred;
+            }
+            in.position(position);
+        }
+        finally
+        {
+            record(name, bytes, startNanos);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads in to its end and discards the bytes.
+     */
+    public static long drain(InputStream in) throws IOException
+    {
+        long bytes = 0;
+        ByteBuffer buffer = acquireBuffer();
+        try
+        {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer.array())) >= 0)
+            {
+                bytes += bytesRead;
+            }
+        }
+        finally
+        {
+            releaseBuffer(buffer);
+        }
+        return bytes;
+    }
+
+    /**
+     * Average throughput of every copy counted under name so far.
+     */
+    public static double getMegabytesPerSecond(String name)
+    {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        // Microseconds, so the many small page copies do not each round down to nothing
+        long micros = metrics.get("io." + name + ".us");
+        return micros == 0 ? 0 : metrics.get("io." + name + ".bytes") / 1048576.0 / micros * 1000000;
+    }
+
+    static ByteBuffer acquireBuffer()
+    {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        if (buffer == null)
+        {
+            return ByteBuffer.allocate(BUFFER_BYTES);
+        }
+        // Called through Buffer, which a build on a newer JDK still links to the method a Java 8 runtime has
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+    static void releaseBuffer(ByteBuffer buffer)
+    {
+        BUFFER_POOL.offer(buffer);
+    }
+
+    private static void record(String name, long bytes, long startNanos)
+    {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.add("io." + name + ".bytes", bytes);
+        metrics.add("io." + name + ".us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+}
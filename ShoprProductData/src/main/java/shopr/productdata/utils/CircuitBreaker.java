@@ -0,0 +1,73 @@
+package shopr.productdata.utils;
+
+/**
+ * Created by Neil on 11/9/2016.
+ *
+ * Opens after a run of consecutive failures and lets one trial request through after a cool-down. Callers pause
+ * the work behind an open breaker instead of failing it.
+ *
+ * @author Neil Allison
+ */
+public class CircuitBreaker
+{
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final int maxTrips;
+    private int consecutiveFailures;
+    private int trips;
+    private long openUntil;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, int maxTrips)
+    {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.maxTrips = maxTrips;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized boolean isOpen()
+    {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    public synchronized long getRemainingOpenMillis()
+    {
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * True once the breaker has tripped more often than allowed and the work behind it should be abandoned.
+     */
+    public synchronized boolean isExhausted()
+    {
+        return trips > maxTrips;
+    }
+
+    public synchronized void recordSuccess()
+    {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Returns true if this failure tripped the breaker.
+     */
+    public synchronized boolean recordFailure()
+    {
+        consecutiveFailures++;
+        if (consecutiveFailures >= failureThreshold && !isOpen())
+        {
+            trips++;
+            openUntil = System.currentTimeMillis() + openMillis;
+            // Half open: the next failure after the cool-down trips the breaker again
+            consecutiveFailures = failureThreshold - 1;
+            return true;
+        }
+        return false;
+    }
+}
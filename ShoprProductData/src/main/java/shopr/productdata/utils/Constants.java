@@ -6,6 +6,7 @@ package shopr.productdata.utils;
  * @author Neil Allison
  */
 public class Constants {
+    public static final String BESTBUY_PRODUCT_API_BASE = "https://api.bestbuy.com/v1/products";
     public static final String BESTBUY_BULK_PRODUCT_API_BASE = "https://api.bestbuy.com/v1/products.json.zip?apiKey=";
     public static final String WALMART_TAXONOMY_API_BASE = "http://api.walmartlabs.com/v1/taxonomy?apiKey=";
     public static final String WALMART_API_BASE = "http://api.walmartlabs.com";
@@ -0,0 +1,403 @@
+package shopr.productdata.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Created by Neil on 11/16/2016.
+ *
+ * zlib compression with a preset dictionary trained on earlier files of the same kind, so small documents that share
+ * most of their structure, like API pages, compress well from the first byte on.
+ *
+ * @author Neil Allison
+ */
+public class DictionaryCompressor
+{
+    private static final Logger LOGGER = Logger.getLogger(DictionaryCompressor.class);
+    public static final String COMPRESSED_SUFFIX = ".zz";
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    private static final int SEGMENT_BYTES = 256;
+    private static final int KMER_BYTES = 16;
+    private static final int MAX_SAMPLE_BYTES = 1048576;
+    private static final String DICTIONARY_SUFFIX = ".dict";
+    private static final String CURRENT = "current";
+    private static final String TRAINED = "trained";
+    private static final String USED_PREFIX = "used.";
+
+    private final String name;
+    private final int level;
+    private final File dictionaryDir;
+    private final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile byte[] dictionary;
+    private volatile long trained;
+
+    public DictionaryCompressor(String name, int level)
+    {
+        this.name = name;
+        this.level = level;
+        this.dictionaryDir = LocalStateStore.getInstance().getFile(name + "-dictionaries");
+        Properties state = LocalStateStore.getInstance().load(name + "-dictionary");
+        String current = state.getProperty(CURRENT);
+        if (current != null)
+        {
+            dictionary = loadDictionary(Long.parseLong(current, 16));
+            trained = Long.parseLong(state.getProperty(TRAINED, "0"));
+        }
+    }
+
+    public static boolean isCompressed(File file)
+    {
+        return file.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * The file name without the compressed suffix.
+     */
+    public static String getUncompressedName(String filename)
+    {
+        return filename.endsWith(COMPRESSED_SUFFIX)
+                ? filename.substring(0, filename.length() - COMPRESSED_SUFFIX.length()) : filename;
+    }
+
+    /**
+     * The dictionary new streams are written with, or null when none has been trained yet.
+     */
+    public byte[] getDictionary()
+    {
+        return dictionary;
+    }
+
+    public String getDictionaryFilename()
+    {
+        return dictionary == null ? null : getDictionaryFilename(getDictionaryId(dictionary));
+    }
+
+    public boolean isRetrainDue(long retrainIntervalMillis)
+    {
+        return dictionary == null || System.currentTimeMillis() - trained >= retrainIntervalMillis;
+    }
+
+    public OutputStream compress(OutputStream out)
+    {
+        Deflater deflater = new Deflater(level);
+        byte[] currentDictionary = dictionary;
+        if (currentDictionary != null)
+        {
+            deflater.setDictionary(currentDictionary);
+        }
+        return new DeflaterOutputStream(out, deflater, 65536)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    public InputStream decompress(InputStream in)
+    {
+        return new InflaterInputStream(in, new Inflater(), 65536)
+        {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int bytesRead = super.read(b, off, len);
+                if (bytesRead < 0 && inf.needsDictionary())
+                {
+                    // zlib names the dictionary in the stream header, so a stream is read with the one it was
+                    // written with even after a newer one has been trained
+                    long dictionaryId = inf.getAdler() & 0xffffffffL;
+                    byte[] streamDictionary = loadDictionary(dictionaryId);
+                    if (streamDictionary == null)
+                    {
+                        throw new IOException(String.format("Missing %s dictionary %08x", name, dictionaryId));
+                    }
+                    inf.setDictionary(streamDictionary);
+                    bytesRead = super.read(b, off, len);
+                }
+                return bytesRead;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it carries the compressed suffix.
+     */
+    public InputStream open(File file) throws IOException
+    {
+        InputStream is = new BufferedInputStream(new FileInputStream(file), 65536);
+        return isCompressed(file) ? decompress(is) : is;
+    }
+
+    /**
+     * Trains a dictionary on the given files and makes it the one new streams are written with. The dictionary is
+     * built from the 256 byte segments whose 16 byte substrings occur in the most samples, each substring counting
+     * only for the first segment picked that contains it. The best segments go last, closest to the data.
+     */
+    public synchronized boolean train(List<File> samples)
+    {
+        List<byte[]> sampleData = new ArrayList<>();
+        for (File sample : samples)
+        {
+            try (InputStream is = new BoundedInputStream(open(sample), MAX_SAMPLE_BYTES))
+            {
+                sampleData.add(IOUtils.toByteArray(is));
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Skipping unreadable dictionary sample: " + sample, e);
+            }
+        }
+        if (sampleData.size() < 2)
+        {
+            LOGGER.info(String.format("Not enough samples to train a %s dictionary", name));
+            return false;
+        }
+
+        // Document frequency of every k-mer: in how many samples it occurs
+        Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] data : sampleData)
+        {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + KMER_BYTES <= data.length; i++)
+            {
+                seen.add(hashKmer(data, i));
+            }
+            for (Long kmer : seen)
+            {
+                frequencies.merge(kmer, 1, Integer::sum);
+            }
+        }
+
+        PriorityQueue<long[]> segments = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int s = 0; s < sampleData.size(); s++)
+        {
+            byte[] data = sampleData.get(s);
+            for (int start = 0; start + SEGMENT_BYTES <= data.length; start += SEGMENT_BYTES)
+            {
+                segments.add(new long[]{scoreSegment(data, start, frequencies), s, start});
+            }
+        }
+
+        // Lazy greedy: a segment is only taken if its score, rechecked against what is already covered, still wins
+        Deque<byte[]> picked = new ArrayDeque<>();
+        int dictionaryBytes = 0;
+        while (!segments.isEmpty() && dictionaryBytes + SEGMENT_BYTES <= MAX_DICTIONARY_BYTES)
+        {
+            long[] segment = segments.poll();
+            byte[] data = sampleData.get((int) segment[1]);
+            int start = (int) segment[2];
+            long score = scoreSegment(data, start, frequencies);
+            if (score <= 0)
+            {
+                break;
+            }
+            if (!segments.isEmpty() && score < segments.peek()[0])
+            {
+                segment[0] = score;
+                segments.add(segment);
+                continue;
+            }
+            for (int i = start; i + KMER_BYTES <= start + SEGMENT_BYTES; i++)
+            {
+                frequencies.remove(hashKmer(data, i));
+            }
+            picked.addFirst(Arrays.copyOfRange(data, start, start + SEGMENT_BYTES));
+            dictionaryBytes += SEGMENT_BYTES;
+        }
+        if (picked.isEmpty())
+        {
+            return false;
+        }
+
+        ByteArrayOutputStream newDictionary = new ByteArrayOutputStream(dictionaryBytes);
+        for (byte[] segment : picked)
+        {
+            newDictionary.write(segment, 0, segment.length);
+        }
+        return storeDictionary(newDictionary.toByteArray(), sampleData.size());
+    }
+
+    private boolean storeDictionary(byte[] newDictionary, int sampleCount)
+    {
+        long id = getDictionaryId(newDictionary);
+        File dictionaryFile = new File(dictionaryDir, getDictionaryFilename(id));
+        try
+        {
+            Files.createDirectories(dictionaryDir.toPath());
+            Files.write(dictionaryFile.toPath(), newDictionary);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to store trained dictionary: " + dictionaryFile, e);
+            return false;
+        }
+        Properties state = LocalStateStore.getInstance().load(name + "-dictionary");
+        state.setProperty(CURRENT, Long.toHexString(id));
+        state.setProperty(TRAINED, String.valueOf(System.currentTimeMillis()));
+        if (!LocalStateStore.getInstance().store(name + "-dictionary", state))
+        {
+            return false;
+        }
+        dictionaries.put(id, newDictionary);
+        dictionary = newDictionary;
+        trained = System.currentTimeMillis();
+        LOGGER.info(String.format("Trained %s dictionary %s: %d bytes from %d samples", name,
+                dictionaryFile.getName(), newDictionary.length, sampleCount));
+        return true;
+    }
+
+    /**
+     * Records that the current dictionary is about to write streams, so it is kept while they may still be read.
+     */
+    public synchronized void markUsed()
+    {
+        if (dictionary == null)
+        {
+            return;
+        }
+        Properties state = LocalStateStore.getInstance().load(name + "-dictionary");
+        state.setProperty(USED_PREFIX + Long.toHexString(getDictionaryId(dictionary)),
+                String.valueOf(System.currentTimeMillis()));
+        LocalStateStore.getInstance().store(name + "-dictionary", state);
+    }
+
+    /**
+     * Deletes dictionaries not used to write anything for longer than maxAgeMillis, except the current one. A
+     * dictionary never marked used counts from when it was trained.
+     */
+    public synchronized void deleteDictionariesUnusedFor(long maxAgeMillis)
+    {
+        File[] dictionaryFiles = dictionaryDir.listFiles((dir, filename) -> filename.endsWith(DICTIONARY_SUFFIX));
+        if (dictionaryFiles == null)
+        {
+            return;
+        }
+        Properties state = LocalStateStore.getInstance().load(name + "-dictionary");
+        String current = getDictionaryFilename();
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        boolean changed = false;
+        for (File dictionaryFile : dictionaryFiles)
+        {
+            String filename = dictionaryFile.getName();
+            long id;
+            try
+            {
+                id = Long.parseLong(filename.substring(0, filename.length() - DICTIONARY_SUFFIX.length()), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+            String usedKey = USED_PREFIX + Long.toHexString(id);
+            long lastUsed = Long.parseLong(state.getProperty(usedKey, String.valueOf(dictionaryFile.lastModified())));
+            if (filename.equals(current) || lastUsed >= cutoff)
+            {
+                continue;
+            }
+            if (dictionaryFile.delete())
+            {
+                LOGGER.info(String.format("Deleted %s dictionary %s, unused since %tF", name, filename, lastUsed));
+                dictionaries.remove(id);
+                changed |= state.remove(usedKey) != null;
+            }
+            else
+            {
+                LOGGER.warn("Failed to delete old dictionary: " + dictionaryFile);
+            }
+        }
+        if (changed)
+        {
+            LocalStateStore.getInstance().store(name + "-dictionary", state);
+        }
+    }
+
+    private byte[] loadDictionary(long id)
+    {
+        return dictionaries.computeIfAbsent(id, key ->
+        {
+            File dictionaryFile = new File(dictionaryDir, getDictionaryFilename(key));
+            try
+            {
+                return dictionaryFile.exists() ? Files.readAllBytes(dictionaryFile.toPath()) : null;
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to read dictionary: " + dictionaryFile, e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Dictionaries are stored under <name>-dictionaries by their Adler-32, the id zlib writes into stream headers.
+     */
+    private static long getDictionaryId(byte[] dictionary)
+    {
+        Adler32 adler32 = new Adler32();
+        adler32.update(dictionary, 0, dictionary.length);
+        return adler32.getValue();
+    }
+
+    private static String getDictionaryFilename(long id)
+    {
+        return String.format("%08x", id) + DICTIONARY_SUFFIX;
+    }
+
+    private static long scoreSegment(byte[] data, int start, Map<Long, Integer> frequencies)
+    {
+        long score = 0;
+        for (int i = start; i + KMER_BYTES <= start + SEGMENT_BYTES; i++)
+        {
+            Integer frequency = frequencies.get(hashKmer(data, i));
+            // A substring seen in only one sample is not worth dictionary space
+            if (frequency != null && frequency > 1)
+            {
+                score += frequency;
+            }
+        }
+        return score;
+    }
+
+    private static long hashKmer(byte[] data, int offset)
+    {
+        long hash = 1125899906842597L;
+        for (int i = offset; i < offset + KMER_BYTES; i++)
+        {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,664 @@
+package shopr.productdata.utils;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.DownloadCheckpoint;
+import shopr.productdata.objects.DownloadSegment;
+import shopr.productdata.objects.DownloadStatus;
+import shopr.productdata.objects.ValidatorCacheEntry;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Neil on 10/30/2016.
+ *
+ * Downloads a single large file into a partial file next to a sidecar checkpoint, and resumes from the checkpoint
+ * with Range requests guarded by If-Range so a file changed on the server is never spliced onto the old one.
+ *
+ * @author Neil Allison
+ */
+public class HttpDownloadHandler
+{
+    private static final Logger LOGGER = Logger.getLogger(HttpDownloadHandler.class);
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final long CHECKPOINT_INTERVAL_BYTES = 16L * 1048576;
+    private static final long MIN_SEGMENT_BYTES = 8L * 1048576;
+    private static final DownloadCheckpoint NOT_MODIFIED_CHECKPOINT = new DownloadCheckpoint();
+
+    private final int segmentCount;
+    private final HttpClient httpClient;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicBoolean contentChanged = new AtomicBoolean();
+    private volatile long contentLength = -1;
+    private long lastCheckpointBytes;
+    private ValidatorCacheEntry previousValidators;
+    private String eTag;
+    private String lastModified;
+    private OutputStream teeOutputStream;
+    private boolean teeComplete;
+
+    public HttpDownloadHandler()
+    {
+        this(1);
+    }
+
+    public HttpDownloadHandler(int segmentCount)
+    {
+        this.segmentCount = Math.max(1, segmentCount);
+        httpClient = HttpTransport.getInstance().getDownloadClient();
+    }
+
+    public static boolean isDownloadArtifact(File file, String partialFilename)
+    {
+        return file.getName().equals(partialFilename) || file.getName().equals(partialFilename + CHECKPOINT_SUFFIX);
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    /**
+     * Validators from the last successful download. A fresh download is then sent as a conditional request and
+     * reports NOT_MODIFIED when the server has nothing new. Resumed downloads are never conditional.
+     */
+    public void setPreviousValidators(ValidatorCacheEntry previousValidators)
+    {
+        this.previousValidators = previousValidators;
+    }
+
+    /**
+     * Receives a copy of the response body while it is written to disk. Only an uninterrupted single stream that
+     * starts at byte 0 can produce a usable copy, so check isTeeComplete() before relying on it.
+     */
+    public void setTeeOutputStream(OutputStream teeOutputStream)
+    {
+        this.teeOutputStream = teeOutputStream;
+    }
+
+    public boolean isTeeComplete()
+    {
+        return teeComplete;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    public DownloadStatus download(String url, File partialFile, File destinationFile)
+    {
+        HttpTransport.getInstance().ensureMaxPerRoute(url, segmentCount);
+        File checkpointFile = new File(partialFile.getAbsolutePath() + CHECKPOINT_SUFFIX);
+        DownloadCheckpoint checkpoint = loadCheckpoint(checkpointFile, partialFile);
+
+        if (checkpoint != null && checkpoint.getContentLength() >= 0
+                && checkpoint.getBytesReceived() == checkpoint.getContentLength())
+        {
+            LOGGER.info("Checkpoint shows a complete download, skipping request: " + partialFile.getName());
+            contentLength = checkpoint.getContentLength();
+            bytesReceived.set(contentLength);
+            return toStatus(finishDownload(partialFile, checkpointFile, destinationFile, checkpoint));
+        }
+
+        if (checkpoint == null && segmentCount > 1)
+        {
+            HttpHead request = new HttpHead(url);
+            applyPreviousValidators(request);
+            checkpoint = planSegments(request, partialFile, checkpointFile);
+            if (checkpoint == NOT_MODIFIED_CHECKPOINT)
+            {
+                return DownloadStatus.NOT_MODIFIED;
+            }
+        }
+        if (checkpoint != null && checkpoint.isSegmented())
+        {
+            return toStatus(downloadSegments(url, partialFile, checkpointFile, destinationFile, checkpoint));
+        }
+        return downloadSingleStream(url, partialFile, checkpointFile, destinationFile, checkpoint);
+    }
+
+    public static void discardDownload(File partialFile)
+    {
+        discardDownload(partialFile, new File(partialFile.getAbsolutePath() + CHECKPOINT_SUFFIX));
+    }
+
+    private DownloadStatus downloadSingleStream(String url, File partialFile, File checkpointFile,
+                                                File destinationFile, DownloadCheckpoint checkpoint)
+    {
+        HttpGet request = new HttpGet(url);
+        if (checkpoint == null)
+        {
+            applyPreviousValidators(request);
+        }
+        else
+        {
+            LOGGER.info(String.format("Resuming download of %s at byte %d of %d", partialFile.getName(),
+                    checkpoint.getBytesReceived(), checkpoint.getContentLength()));
+            request.setHeader(HttpHeaders.RANGE, "bytes=" + checkpoint.getBytesReceived() + "-");
+            request.setHeader(HttpHeaders.IF_RANGE, checkpoint.getValidator());
+        }
+
+        HttpResponse httpResponse;
+        try
+        {
+            httpResponse = httpClient.execute(request);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Exception executing download request", e);
+            return DownloadStatus.FAILED;
+        }
+
+        StatusLine statusLine = httpResponse.getStatusLine();
+        HttpEntity entity = httpResponse.getEntity();
+        long startOffset;
+        if (statusLine.getStatusCode() == 304 && checkpoint == null)
+        {
+            LOGGER.info("Server reports the file is not modified: " + statusLine);
+            EntityUtils.consumeQuietly(entity);
+            return DownloadStatus.NOT_MODIFIED;
+        }
+        else if (statusLine.getStatusCode() == 206 && checkpoint != null
+                && matchesRange(httpResponse, checkpoint.getBytesReceived(), checkpoint.getContentLength()))
+        {
+            startOffset = checkpoint.getBytesReceived();
+        }
+        else if (statusLine.getStatusCode() == 200)
+        {
+            if (checkpoint != null)
+            {
+                LOGGER.info("Server returned the full content for a resume request, restarting download");
+            }
+            checkpoint = new DownloadCheckpoint();
+            checkpoint.setContentLength(entity.getContentLength());
+            checkpoint.setETag(getHeaderValue(httpResponse, HttpHeaders.ETAG));
+            checkpoint.setLastModified(getHeaderValue(httpResponse, HttpHeaders.LAST_MODIFIED));
+            startOffset = 0;
+        }
+        else
+        {
+            LOGGER.error("Download request did not succeed: " + statusLine);
+            EntityUtils.consumeQuietly(entity);
+            if (checkpoint != null)
+            {
+                LOGGER.warn("Discarding download checkpoint that the server could not resume: " + checkpointFile);
+                discardDownload(partialFile, checkpointFile);
+            }
+            return DownloadStatus.FAILED;
+        }
+
+        contentLength = checkpoint.getContentLength();
+        bytesReceived.set(startOffset);
+        OutputStream tee = startOffset == 0 ? teeOutputStream : null;
+        DownloadCheckpoint streamCheckpoint = checkpoint;
+        try (
+                InputStream is = entity.getContent();
+                FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)
+        )
+        {
+            channel.truncate(startOffset);
+            lastCheckpointBytes = startOffset;
+            ChannelIO.copy(is, channel, startOffset, -1, "download", (buffer, offset, length) ->
+            {
+                if (tee != null)
+                {
+                    tee.write(buffer, offset, length);
+                }
+                recordProgress(length, channel, streamCheckpoint, checkpointFile);
+            });
+            channel.force(false);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error(String.format("Exception retrieving/writing download content at byte %d, checkpoint kept for resume",
+                    bytesReceived.get()), e);
+            return DownloadStatus.FAILED;
+        }
+        finally
+        {
+            storeCheckpoint(checkpointFile, checkpoint);
+        }
+
+        if (contentLength >= 0 && bytesReceived.get() < contentLength)
+        {
+            LOGGER.error(String.format("Download ended early: %d of %d bytes, checkpoint kept for resume",
+                    bytesReceived.get(), contentLength));
+            return DownloadStatus.FAILED;
+        }
+        if (contentLength >= 0 && bytesReceived.get() > contentLength)
+        {
+            LOGGER.error(String.format("Download is larger than advertised: %d of %d bytes", bytesReceived.get(),
+                    contentLength));
+            discardDownload(partialFile, checkpointFile);
+            return DownloadStatus.FAILED;
+        }
+
+        boolean finished = finishDownload(partialFile, checkpointFile, destinationFile, checkpoint);
+        teeComplete = finished && tee != null;
+        return toStatus(finished);
+    }
+
+    /**
+     * Probes the file with a HEAD request and, when byte ranges are supported, splits it into segments and
+     * preallocates the partial file. Returns null to fall back to a single stream.
+     */
+    private DownloadCheckpoint planSegments(HttpHead request, File partialFile, File checkpointFile)
+    {
+        HttpResponse httpResponse = null;
+        try
+        {
+            httpResponse = httpClient.execute(request);
+            if (httpResponse.getStatusLine().getStatusCode() == 304)
+            {
+                LOGGER.info("Server reports the file is not modified: " + httpResponse.getStatusLine());
+                return NOT_MODIFIED_CHECKPOINT;
+            }
+            if (httpResponse.getStatusLine().getStatusCode() != 200)
+            {
+                LOGGER.info("Download probe did not succeed, using a single stream: " + httpResponse.getStatusLine());
+                return null;
+            }
+
+            String acceptRanges = getHeaderValue(httpResponse, HttpHeaders.ACCEPT_RANGES);
+            String contentLengthHeader = getHeaderValue(httpResponse, HttpHeaders.CONTENT_LENGTH);
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+            checkpoint.setETag(getHeaderValue(httpResponse, HttpHeaders.ETAG));
+            checkpoint.setLastModified(getHeaderValue(httpResponse, HttpHeaders.LAST_MODIFIED));
+            if (acceptRanges == null || !acceptRanges.contains("bytes") || contentLengthHeader == null
+                    || checkpoint.getValidator() == null)
+            {
+                LOGGER.info("Server does not advertise byte ranges with a validator, using a single stream");
+                return null;
+            }
+
+            long length = Long.parseLong(contentLengthHeader.trim());
+            int segments = (int) Math.max(1, Math.min(segmentCount, length / MIN_SEGMENT_BYTES));
+            if (segments == 1)
+            {
+                LOGGER.info("Download is too small to segment, using a single stream");
+                return null;
+            }
+
+            long segmentLength = length / segments;
+            List<DownloadSegment> downloadSegments = new ArrayList<>();
+            for (int i = 0; i < segments; i++)
+            {
+                long start = i * segmentLength;
+                long end = (i == segments - 1) ? length - 1 : start + segmentLength - 1;
+                downloadSegments.add(new DownloadSegment(start, end));
+            }
+            checkpoint.setContentLength(length);
+            checkpoint.setSegments(downloadSegments);
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw"))
+            {
+                randomAccessFile.setLength(length);
+            }
+            storeCheckpoint(checkpointFile, checkpoint);
+            LOGGER.info(String.format("Downloading %dMiB in %d segments", length / 1048576, segments));
+            return checkpoint;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            LOGGER.warn("Download probe failed, using a single stream", e);
+            return null;
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(httpResponse);
+        }
+    }
+
+    private boolean downloadSegments(String url, File partialFile, File checkpointFile, File destinationFile,
+                                     DownloadCheckpoint checkpoint)
+    {
+        contentLength = checkpoint.getContentLength();
+        bytesReceived.set(checkpoint.getBytesReceived());
+        lastCheckpointBytes = checkpoint.getBytesReceived();
+        contentChanged.set(false);
+        if (checkpoint.getBytesReceived() > 0)
+        {
+            LOGGER.info(String.format("Resuming segmented download of %s at %d of %d bytes", partialFile.getName(),
+                    checkpoint.getBytesReceived(), contentLength));
+        }
+
+        List<DownloadSegment> segments = checkpoint.getSegments();
+        ExecutorService executorService = Executors.newFixedThreadPool(segments.size());
+        boolean succeeded = true;
+        try (FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE))
+        {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (DownloadSegment segment : segments)
+            {
+                if (!segment.isComplete())
+                {
+                    futures.add(executorService.submit(() -> downloadSegment(url, channel, segment, checkpoint,
+                            checkpointFile)));
+                }
+            }
+            for (Future<Boolean> future : futures)
+            {
+                try
+                {
+                    succeeded &= future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    LOGGER.error("Segment download failed", e.getCause());
+                    succeeded = false;
+                }
+            }
+            if (succeeded)
+            {
+                channel.force(false);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Exception opening partial download file: " + partialFile, e);
+            succeeded = false;
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.error("Interrupted waiting for segment downloads", e);
+            Thread.currentThread().interrupt();
+            succeeded = false;
+        }
+        finally
+        {
+            executorService.shutdownNow();
+            storeCheckpoint(checkpointFile, checkpoint);
+        }
+
+        if (contentChanged.get())
+        {
+            LOGGER.warn("File changed on the server during a segmented download, discarding partial download");
+            discardDownload(partialFile, checkpointFile);
+            return false;
+        }
+        if (!succeeded)
+        {
+            LOGGER.error(String.format("Segmented download incomplete: %d of %d bytes, checkpoint kept for resume",
+                    bytesReceived.get(), contentLength));
+            return false;
+        }
+        return finishDownload(partialFile, checkpointFile, destinationFile, checkpoint);
+    }
+
+    private boolean downloadSegment(String url, FileChannel channel, DownloadSegment segment,
+                                    DownloadCheckpoint checkpoint, File checkpointFile) throws IOException
+    {
+        long position = segment.getStart() + segment.getBytesReceived();
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HttpHeaders.RANGE, "bytes=" + position + "-" + segment.getEnd());
+        request.setHeader(HttpHeaders.IF_RANGE, checkpoint.getValidator());
+
+        HttpResponse httpResponse = httpClient.execute(request);
+        StatusLine statusLine = httpResponse.getStatusLine();
+        if (statusLine.getStatusCode() != 206 || !matchesRange(httpResponse, position, contentLength))
+        {
+            LOGGER.error(String.format("Segment request for bytes %d-%d did not succeed: %s", position,
+                    segment.getEnd(), statusLine));
+            if (statusLine.getStatusCode() == 200)
+            {
+                contentChanged.set(true);
+            }
+            request.abort();
+            return false;
+        }
+
+        try (InputStream is = httpResponse.getEntity().getContent())
+        {
+            position += ChannelIO.copy(is, channel, position, segment.getEnd() - position + 1, "download",
+                    (buffer, offset, length) ->
+                    {
+                        synchronized (checkpoint)
+                        {
+                            segment.setBytesReceived(segment.getBytesReceived() + length);
+                        }
+                        recordProgress(length, channel, checkpoint, checkpointFile);
+                    });
+        }
+
+        if (!segment.isComplete())
+        {
+            LOGGER.error(String.format("Segment %d-%d ended early at byte %d", segment.getStart(), segment.getEnd(),
+                    position));
+            return false;
+        }
+        return true;
+    }
+
+    private void recordProgress(int bytesRead, FileChannel channel, DownloadCheckpoint checkpoint,
+                                File checkpointFile) throws IOException
+    {
+        long totalBytes = bytesReceived.addAndGet(bytesRead);
+        synchronized (checkpoint)
+        {
+            if (totalBytes - lastCheckpointBytes >= CHECKPOINT_INTERVAL_BYTES)
+            {
+                channel.force(false);
+                storeCheckpoint(checkpointFile, checkpoint);
+                lastCheckpointBytes = totalBytes;
+            }
+        }
+    }
+
+    private static void discardDownload(File partialFile, File checkpointFile)
+    {
+        try
+        {
+            Files.deleteIfExists(partialFile.toPath());
+            Files.deleteIfExists(checkpointFile.toPath());
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to delete partial download: " + partialFile, e);
+        }
+    }
+
+    private boolean finishDownload(File partialFile, File checkpointFile, File destinationFile,
+                                   DownloadCheckpoint checkpoint)
+    {
+        eTag = checkpoint.getETag();
+        lastModified = checkpoint.getLastModified();
+        if (contentLength >= 0 && partialFile.length() != contentLength)
+        {
+            LOGGER.error(String.format("Downloaded file size %d does not match content length %d: %s",
+                    partialFile.length(), contentLength, partialFile));
+            discardDownload(partialFile, checkpointFile);
+            return false;
+        }
+
+        try
+        {
+            Files.move(partialFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(checkpointFile.toPath());
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Failed to move completed download into place: " + destinationFile, e);
+            return false;
+        }
+        return true;
+    }
+
+    private void applyPreviousValidators(HttpRequestBase request)
+    {
+        if (previousValidators == null)
+        {
+            return;
+        }
+        if (previousValidators.getETag() != null)
+        {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, previousValidators.getETag());
+        }
+        if (previousValidators.getLastModified() != null)
+        {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previousValidators.getLastModified());
+        }
+    }
+
+    private static DownloadStatus toStatus(boolean succeeded)
+    {
+        return succeeded ? DownloadStatus.COMPLETE : DownloadStatus.FAILED;
+    }
+
+    private boolean matchesRange(HttpResponse httpResponse, long expectedFirst, long expectedLength)
+    {
+        // Content-Range: bytes <first>-<last>/<complete-length>
+        String contentRange = getHeaderValue(httpResponse, HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+        {
+            return false;
+        }
+        try
+        {
+            String range = contentRange.substring("bytes ".length());
+            long first = Long.parseLong(range.substring(0, range.indexOf('-')).trim());
+            String completeLength = range.substring(range.indexOf('/') + 1).trim();
+            return first == expectedFirst
+                    && ("*".equals(completeLength) || Long.parseLong(completeLength) == expectedLength);
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException e)
+        {
+            LOGGER.warn("Malformed Content-Range header: " + contentRange);
+            return false;
+        }
+    }
+
+    private DownloadCheckpoint loadCheckpoint(File checkpointFile, File partialFile)
+    {
+        if (!checkpointFile.exists() || !partialFile.exists())
+        {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(checkpointFile))
+        {
+            properties.load(is);
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+            checkpoint.setContentLength(Long.parseLong(properties.getProperty("contentLength", "-1")));
+            checkpoint.setETag(properties.getProperty("eTag"));
+            checkpoint.setLastModified(properties.getProperty("lastModified"));
+
+            int segments = Integer.parseInt(properties.getProperty("segments", "0"));
+            for (int i = 0; i < segments; i++)
+            {
+                String start = properties.getProperty("segment." + i + ".start");
+                String end = properties.getProperty("segment." + i + ".end");
+                String segmentBytesReceived = properties.getProperty("segment." + i + ".bytesReceived");
+                if (start == null || end == null || segmentBytesReceived == null)
+                {
+                    LOGGER.warn(String.format("Download checkpoint is missing segment %d of %d, starting over: %s", i,
+                            segments, checkpointFile));
+                    return null;
+                }
+                DownloadSegment segment = new DownloadSegment(Long.parseLong(start), Long.parseLong(end));
+                segment.setBytesReceived(Long.parseLong(segmentBytesReceived));
+                checkpoint.getSegments().add(segment);
+            }
+            checkpoint.setBytesReceived(Long.parseLong(properties.getProperty("bytesReceived", "0")));
+
+            boolean resumable = checkpoint.getValidator() != null && checkpoint.getBytesReceived() <= partialFile.length()
+                    && (checkpoint.isSegmented() ? partialFile.length() == checkpoint.getContentLength()
+                    : checkpoint.getBytesReceived() > 0);
+            if (!resumable)
+            {
+                LOGGER.info("Download checkpoint cannot be resumed, starting over: " + checkpointFile);
+                return null;
+            }
+            return checkpoint;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            LOGGER.warn("Failed to read download checkpoint, starting over: " + checkpointFile, e);
+            return null;
+        }
+    }
+
+    private void storeCheckpoint(File checkpointFile, DownloadCheckpoint checkpoint)
+    {
+        Properties properties = new Properties();
+        synchronized (checkpoint)
+        {
+            long totalBytesReceived = bytesReceived.get();
+            if (checkpoint.isSegmented())
+            {
+                totalBytesReceived = 0;
+                List<DownloadSegment> segments = checkpoint.getSegments();
+                properties.setProperty("segments", Integer.toString(segments.size()));
+                for (int i = 0; i < segments.size(); i++)
+                {
+                    DownloadSegment segment = segments.get(i);
+                    properties.setProperty("segment." + i + ".start", Long.toString(segment.getStart()));
+                    properties.setProperty("segment." + i + ".end", Long.toString(segment.getEnd()));
+                    properties.setProperty("segment." + i + ".bytesReceived", Long.toString(segment.getBytesReceived()));
+                    totalBytesReceived += segment.getBytesReceived();
+                }
+            }
+            checkpoint.setBytesReceived(totalBytesReceived);
+            properties.setProperty("bytesReceived", Long.toString(totalBytesReceived));
+            properties.setProperty("contentLength", Long.toString(checkpoint.getContentLength()));
+            if (checkpoint.getETag() != null)
+            {
+                properties.setProperty("eTag", checkpoint.getETag());
+            }
+            if (checkpoint.getLastModified() != null)
+            {
+                properties.setProperty("lastModified", checkpoint.getLastModified());
+            }
+        }
+
+        try (OutputStream os = new FileOutputStream(checkpointFile))
+        {
+            properties.store(os, "Download checkpoint");
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to write download checkpoint: " + checkpointFile, e);
+        }
+    }
+
+    private static String getHeaderValue(HttpResponse httpResponse, String name)
+    {
+        Header header = httpResponse.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+}
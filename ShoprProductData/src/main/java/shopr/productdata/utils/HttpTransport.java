@@ -0,0 +1,222 @@
+package shopr.productdata.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.http.*;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.HttpCacheMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Neil on 11/15/2016.
+ *
+ * The one HTTP transport every vendor call goes through. Both pipelines share a single connection pool, and every
+ * request gets connect, socket and pool timeouts so a hung socket fails the request instead of the run.
+ *
+ * @author Neil Allison
+ */
+public final class HttpTransport
+{
+    private static final Logger LOGGER = Logger.getLogger(HttpTransport.class);
+    private static final String START_NANOS_ATTRIBUTE = "shopr.http.startNanos";
+    private static final int LATENCY_GAUGE_INTERVAL = 16;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final CloseableHttpClient downloadClient;
+    private final Map<String, LatencyTracker> latencyTrackers = new ConcurrentHashMap<>();
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    private HttpTransport()
+    {
+        PropertiesLoader propertiesLoader = PropertiesLoader.getInstance();
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Integer.parseInt(propertiesLoader.getProperty("http.pool.max.total", "64")));
+        connectionManager.setDefaultMaxPerRoute(Integer.parseInt(
+                propertiesLoader.getProperty("http.pool.max.per.route", "8")));
+        connectionManager.setValidateAfterInactivity(2000);
+
+        long keepAliveMillis = Long.parseLong(propertiesLoader.getProperty("http.keepalive.ms", "30000"));
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "http-idle-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(() ->
+        {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+        }, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(Integer.parseInt(propertiesLoader.getProperty("http.connect.timeout.ms", "10000")))
+                .setSocketTimeout(Integer.parseInt(propertiesLoader.getProperty("http.socket.timeout.ms", "60000")))
+                .setConnectionRequestTimeout(Integer.parseInt(
+                        propertiesLoader.getProperty("http.pool.timeout.ms", "60000")))
+                .build();
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) ->
+                {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                            context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+                })
+                .addInterceptorFirst(this::beforeRequest)
+                // Added first so it sees the body before it is inflated
+                .addInterceptorFirst(this::afterResponse);
+        client = withCache(builder.build(), propertiesLoader);
+        // Ranged downloads need offsets into the file itself, so the download client never negotiates gzip
+        downloadClient = withCache(builder.disableContentCompression().build(), propertiesLoader);
+    }
+
+    private static class HttpTransportHolder
+    {
+        private static final HttpTransport INSTANCE = new HttpTransport();
+    }
+
+    public static HttpTransport getInstance()
+    {
+        return HttpTransportHolder.INSTANCE;
+    }
+
+    /**
+     * Client for API calls. It is shared, so callers must not close it.
+     */
+    public CloseableHttpClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Client for file downloads that may use byte ranges. It is shared, so callers must not close it.
+     */
+    public CloseableHttpClient getDownloadClient()
+    {
+        return downloadClient;
+    }
+
+    /**
+     * Lets callers that run many requests against one host in parallel raise that host's connection limit.
+     */
+    public synchronized void ensureMaxPerRoute(String url, int maxConnections)
+    {
+        URI uri = URI.create(url);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        HttpHost host = new HttpHost(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80,
+                uri.getScheme());
+        HttpRoute route = new HttpRoute(host, null, secure);
+        if (connectionManager.getMaxPerRoute(route) < maxConnections)
+        {
+            connectionManager.setMaxPerRoute(route, maxConnections);
+            connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(), maxConnections));
+            LOGGER.debug(String.format("Connection limit for %s raised to %d", host, maxConnections));
+        }
+    }
+
+    /**
+     * With http.cache.mode set to record or replay, wraps the client in a RecordReplayHttpClient over http.cache.dir.
+     */
+    private static CloseableHttpClient withCache(CloseableHttpClient httpClient, PropertiesLoader propertiesLoader)
+    {
+        HttpCacheMode cacheMode = HttpCacheMode.valueOf(propertiesLoader.getProperty("http.cache.mode", "off")
+                .toUpperCase());
+        if (cacheMode == HttpCacheMode.OFF)
+        {
+            return httpClient;
+        }
+        String cacheDir = propertiesLoader.getProperty("http.cache.dir",
+                LocalStateStore.getInstance().getFile("http-cache").getAbsolutePath());
+        LOGGER.info(String.format("HTTP cache in %s mode: %s", cacheMode, cacheDir));
+        return new RecordReplayHttpClient(httpClient, cacheMode, new File(cacheDir),
+                Long.parseLong(propertiesLoader.getProperty("http.cache.replay.latency.ms", "0")));
+    }
+
+    private void beforeRequest(HttpRequest request, HttpContext context)
+    {
+        context.setAttribute(START_NANOS_ATTRIBUTE, System.nanoTime());
+        metrics.increment(metricName(context, "requests"));
+    }
+
+    private void afterResponse(HttpResponse response, HttpContext context)
+    {
+        Object startNanos = context.getAttribute(START_NANOS_ATTRIBUTE);
+        if (startNanos != null)
+        {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (Long) startNanos);
+            metrics.add(metricName(context, "latency.ms"), latencyMillis);
+            String host = getHost(context);
+            LatencyTracker latencyTracker = latencyTrackers.computeIfAbsent(host, h -> new LatencyTracker(256, 20));
+            latencyTracker.record(latencyMillis);
+            if (metrics.get(metricName(context, "requests")) % LATENCY_GAUGE_INTERVAL == 0)
+            {
+                metrics.setGauge(metricName(context, "p95.ms"), latencyTracker.getPercentile(95));
+            }
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity != null)
+        {
+            String bytesMetric = metricName(context, "bytes");
+            response.setEntity(new HttpEntityWrapper(entity)
+            {
+                @Override
+                public InputStream getContent() throws IOException
+                {
+                    return new ProxyInputStream(super.getContent())
+                    {
+                        @Override
+                        protected void afterRead(int bytesRead)
+                        {
+                            if (bytesRead > 0)
+                            {
+                                metrics.add(bytesMetric, bytesRead);
+                            }
+                        }
+                    };
+                }
+
+                @Override
+                public void writeTo(OutputStream outStream) throws IOException
+                {
+                    try (InputStream is = getContent())
+                    {
+                        IOUtils.copyLarge(is, outStream);
+                    }
+                }
+            });
+        }
+    }
+
+    private static String getHost(HttpContext context)
+    {
+        HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+        return target == null ? "unknown" : target.getHostName();
+    }
+
+    private static String metricName(HttpContext context, String suffix)
+    {
+        return "http." + getHost(context) + "." + suffix;
+    }
+}
@@ -0,0 +1,192 @@
+package shopr.productdata.utils;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * Cuts a file holding one large JSON array of objects into byte ranges of whole elements, so the ranges can be
+ * parsed on separate threads.
+ *
+ * @author Neil Allison
+ */
+public final class JsonArraySplitter
+{
+    private static final int SCAN_BUFFER_BYTES = 1048576;
+    private static final byte[] ARRAY_START = {'['};
+    private static final byte[] ARRAY_END = {']'};
+
+    public static final class Chunk
+    {
+        private final long start;
+        private final long end;
+
+        Chunk(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart()
+        {
+            return start;
+        }
+
+        public long getEnd()
+        {
+            return end;
+        }
+
+        public long getLength()
+        {
+            return end - start;
+        }
+    }
+
+    private JsonArraySplitter()
+    {
+    }
+
+    /**
+     * Splits the array into ranges of at least minChunkBytes that together hold every object element. Returns an
+     * empty list when the file is not a single complete JSON array, so the caller can parse it whole instead.
+     */
+    public static List<Chunk> split(File file, long minChunkBytes) throws IOException
+    {
+        List<Chunk> chunks = new ArrayList<>();
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean started = false;
+        long chunkStart = -1;
+        long lastElementEnd = -1;
+        long position = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+        byte[] bytes = buffer.array();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            int bytesRead;
+            while ((bytesRead = channel.read(buffer)) >= 0)
+            {
+                // Structural characters are ASCII and no byte of a multi-byte UTF-8 sequence is, so there is
+                // nothing to decode
+                for (int i = 0; i < bytesRead; i++, position++)
+                {
+                    byte b = bytes[i];
+                    if (inString)
+                    {
+                        if (escaped)
+                        {
+                            escaped = false;
+                        }
+                        else if (b == '\\')
+                        {
+                            escaped = true;
+                        }
+                        else if (b == '"')
+                        {
+                            inString = false;
+                        }
+                        continue;
+                    }
+                    if (!started)
+                    {
+                        if (b == '[')
+                        {
+                            started = true;
+                            depth = 1;
+                        }
+                        else if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+                        {
+                            return Collections.emptyList();
+                        }
+                        continue;
+                    }
+                    switch (b)
+                    {
+                        case '"':
+                            inString = true;
+                            break;
+                        case '{':
+                            if (depth == 1)
+                            {
+                                if (chunkStart < 0)
+                                {
+                                    chunkStart = position;
+                                }
+                                else if (position - chunkStart >= minChunkBytes)
+                                {
+                                    chunks.add(new Chunk(chunkStart, lastElementEnd));
+                                    chunkStart = position;
+                                }
+                            }
+                            depth++;
+                            break;
+                        case '[':
+                            depth++;
+                            break;
+                        case '}':
+                            depth--;
+                            if (depth == 1)
+                            {
+                                lastElementEnd = position + 1;
+                            }
+                            break;
+                        case ']':
+                            depth--;
+                            if (depth == 0)
+                            {
+                                if (chunkStart >= 0)
+                                {
+                                    chunks.add(new Chunk(chunkStart, lastElementEnd));
+                                }
+                                return chunks;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                ((Buffer) buffer).clear();
+            }
+        }
+        // The array never closed
+        return Collections.emptyList();
+    }
+
+    /**
+     * The bytes of a chunk wrapped in [ and ], as a JSON array of its own.
+     */
+    public static InputStream openChunk(File file, Chunk chunk) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(file);
+        try
+        {
+            fis.getChannel().position(chunk.getStart());
+        }
+        catch (IOException e)
+        {
+            fis.close();
+            throw e;
+        }
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(ARRAY_START),
+                new BoundedInputStream(fis, chunk.getLength()),
+                new ByteArrayInputStream(ARRAY_END))));
+    }
+}
@@ -0,0 +1,219 @@
+package shopr.productdata.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Created by Neil on 11/8/2016.
+ *
+ * Finds the string value of one top level field in a JSON document as its bytes arrive, without building a tree.
+ * Feed chunks with update() until isDone() returns true.
+ *
+ * @author Neil Allison
+ */
+public class JsonCursorScanner
+{
+    private static final int MAX_KEY_BYTES = 256;
+
+    private final String fieldName;
+    private final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean collecting;
+    private boolean expectingKey;
+    private boolean stringIsKey;
+    private boolean keyMatched;
+    private boolean awaitingValue;
+    private boolean done;
+    private String value;
+
+    public JsonCursorScanner(String fieldName)
+    {
+        this.fieldName = fieldName;
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * The field's value, or null when the field is missing, null or not a string.
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Scans the next chunk of the document. Returns true once the field has been found or ruled out.
+     */
+    public boolean update(byte[] buffer, int offset, int length)
+    {
+        for (int i = offset; i < offset + length && !done; i++)
+        {
+            scan(buffer[i]);
+        }
+        return done;
+    }
+
+    private void scan(byte b)
+    {
+        if (inString)
+        {
+            if (escaped)
+            {
+                escaped = false;
+            }
+            else if (b == '\\')
+            {
+                escaped = true;
+            }
+            else if (b == '"')
+            {
+                inString = false;
+                endString();
+                return;
+            }
+            if (collecting)
+            {
+                stringBytes.write(b);
+                if (stringIsKey && stringBytes.size() > MAX_KEY_BYTES)
+                {
+                    collecting = false;
+                }
+            }
+            return;
+        }
+
+        if (b == ' ' || b == '\t' || b == '\n' || b == '\r')
+        {
+            return;
+        }
+
+        if (awaitingValue)
+        {
+            awaitingValue = false;
+            if (b == '"')
+            {
+                inString = true;
+                stringIsKey = false;
+                collecting = true;
+                stringBytes.reset();
+            }
+            else
+            {
+                // null, a number or a container: there is no cursor to follow
+                done = true;
+            }
+            return;
+        }
+
+        switch (b)
+        {
+            case '"':
+                inString = true;
+                stringIsKey = depth == 1 && expectingKey;
+                collecting = stringIsKey;
+                stringBytes.reset();
+                break;
+            case '{':
+            case '[':
+                depth++;
+                expectingKey = depth == 1 && b == '{';
+                break;
+            case '}':
+            case ']':
+                depth--;
+                if (depth <= 0)
+                {
+                    done = true;
+                }
+                break;
+            case ',':
+                if (depth == 1)
+                {
+                    expectingKey = true;
+                    keyMatched = false;
+                }
+                break;
+            case ':':
+                if (depth == 1 && keyMatched)
+                {
+                    awaitingValue = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void endString()
+    {
+        if (!collecting)
+        {
+            return;
+        }
+        collecting = false;
+        String text = unescape(new String(stringBytes.toByteArray(), StandardCharsets.UTF_8));
+        if (stringIsKey)
+        {
+            expectingKey = false;
+            keyMatched = fieldName.equals(text);
+        }
+        else
+        {
+            value = text;
+            done = true;
+        }
+    }
+
+    private static String unescape(String text)
+    {
+        if (text.indexOf('\\') < 0)
+        {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 >= text.length())
+            {
+                sb.append(c);
+                continue;
+            }
+            char escape = text.charAt(++i);
+            switch (escape)
+            {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < text.length())
+                    {
+                        sb.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    sb.append(escape);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
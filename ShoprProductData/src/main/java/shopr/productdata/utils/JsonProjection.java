@@ -0,0 +1,174 @@
+package shopr.productdata.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * Reads only the wanted fields of a JSON object off a streaming parser. Paths are dotted field names, and a field
+ * name ending in [] is an array whose elements the rest of the path applies to, e.g. categoryPath[].name.
+ *
+ * @author Neil Allison
+ */
+public final class JsonProjection
+{
+    private static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.instance;
+    private static final String ARRAY_SUFFIX = "[]";
+
+    private final Map<String, JsonProjection> fields = new HashMap<>();
+    private boolean array;
+
+    private JsonProjection()
+    {
+    }
+
+    public static JsonProjection of(String... paths)
+    {
+        JsonProjection projection = new JsonProjection();
+        for (String path : paths)
+        {
+            JsonProjection node = projection;
+            for (String segment : path.split("\\."))
+            {
+                boolean arraySegment = segment.endsWith(ARRAY_SUFFIX);
+                String field = arraySegment ? segment.substring(0, segment.length() - ARRAY_SUFFIX.length()) : segment;
+                node = node.fields.computeIfAbsent(field, f -> new JsonProjection());
+                node.array |= arraySegment;
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Reads the object the parser is at, from its START_OBJECT to its END_OBJECT, keeping only the projected fields.
+     */
+    public ObjectNode readObject(JsonParser parser) throws IOException
+    {
+        ObjectNode object = NODE_FACTORY.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            // Field names come back interned from the parser's symbol table, so the lookup does not allocate
+            String name = parser.getCurrentName();
+            JsonProjection field = fields.get(name);
+            JsonToken token = parser.nextToken();
+            if (field == null)
+            {
+                // Walks the tokens without building values, so unwanted fields cost next to nothing
+                parser.skipChildren();
+                continue;
+            }
+            JsonNode value = field.readValue(parser, token);
+            if (value != null)
+            {
+                object.set(name, value);
+            }
+        }
+        return object;
+    }
+
+    private JsonNode readValue(JsonParser parser, JsonToken token) throws IOException
+    {
+        // A path that ends at an object or array keeps that value whole
+        if (fields.isEmpty())
+        {
+            return token.isScalarValue() ? readScalar(parser, token) : parser.readValueAsTree();
+        }
+        if (array && token == JsonToken.START_ARRAY)
+        {
+            ArrayNode elements = NODE_FACTORY.arrayNode();
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+            {
+                if (token == JsonToken.START_OBJECT)
+                {
+                    elements.add(readObject(parser));
+                }
+                else if (token.isScalarValue())
+                {
+                    elements.add(readScalar(parser, token));
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+            return elements;
+        }
+        if (!array && token == JsonToken.START_OBJECT)
+        {
+            return readObject(parser);
+        }
+        // Not the shape the path expects, a scalar is still worth keeping
+        if (token.isScalarValue())
+        {
+            return readScalar(parser, token);
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static JsonNode readScalar(JsonParser parser, JsonToken token) throws IOException
+    {
+        switch (token)
+        {
+            case VALUE_STRING:
+                return NODE_FACTORY.textNode(parser.getText());
+            case VALUE_NUMBER_INT:
+                return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                        ? NODE_FACTORY.numberNode(parser.getBigIntegerValue())
+                        : NODE_FACTORY.numberNode(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return NODE_FACTORY.numberNode(parser.getDoubleValue());
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return NODE_FACTORY.booleanNode(parser.getBooleanValue());
+            default:
+                return NODE_FACTORY.nullNode();
+        }
+    }
+
+    /**
+     * The text of a scalar field, or null when it is missing, null or not a scalar.
+     */
+    public static String getText(JsonNode node, String field)
+    {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() || value.isContainerNode() ? null : value.asText();
+    }
+
+    /**
+     * A numeric field as a Double, or null when it is missing or not a number.
+     */
+    public static Double getDouble(JsonNode node, String field)
+    {
+        JsonNode value = node.get(field);
+        return value != null && value.isNumber() ? value.doubleValue() : null;
+    }
+
+    /**
+     * Moves the parser onto the START_ARRAY of the named field of the object it is in, from the FIELD_NAME token it
+     * is at. Returns false when the object has no such array.
+     */
+    public static boolean seekArrayField(JsonParser parser, String field) throws IOException
+    {
+        while (parser.getCurrentToken() == JsonToken.FIELD_NAME)
+        {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && field.equals(name))
+            {
+                return true;
+            }
+            parser.skipChildren();
+            parser.nextToken();
+        }
+        return false;
+    }
+}
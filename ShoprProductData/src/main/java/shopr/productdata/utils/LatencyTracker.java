@@ -0,0 +1,46 @@
+package shopr.productdata.utils;
+
+import java.util.Arrays;
+
+/**
+ * Created by Neil on 11/11/2016.
+ *
+ * Keeps the most recent request latencies in a ring buffer and answers percentile queries over them.
+ *
+ * @author Neil Allison
+ */
+public class LatencyTracker
+{
+    private final long[] latencies;
+    private final int minSamples;
+    private int next;
+    private int count;
+
+    public LatencyTracker(int capacity, int minSamples)
+    {
+        this.latencies = new long[capacity];
+        this.minSamples = minSamples;
+    }
+
+    public synchronized void record(long latencyMillis)
+    {
+        latencies[next] = latencyMillis;
+        next = (next + 1) % latencies.length;
+        count = Math.min(count + 1, latencies.length);
+    }
+
+    /**
+     * Returns the latency at the given percentile (0-100), or -1 until minSamples latencies have been recorded.
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count < minSamples)
+        {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(count * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
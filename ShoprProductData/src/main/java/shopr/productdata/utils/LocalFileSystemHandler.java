@@ -3,7 +3,9 @@ package shopr.productdata.utils;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -49,37 +51,54 @@ public class LocalFileSystemHandler
         return true;
     }
 
-    public static boolean zipFiles(String zipOutputFilePath, String inputFilesDir) throws IOException
+    public static boolean deleteDirectoryContents(String targetDir, FileFilter keepFilter)
     {
-        FileOutputStream fos = new FileOutputStream(zipOutputFilePath);
-        ZipOutputStream zos = new ZipOutputStream(fos);
+        File[] files = (new File(targetDir)).listFiles();
+        if (files == null)
+        {
+            LOGGER.error("Failed to list temporary directory: " + targetDir);
+            return false;
+        }
+        for (File file : files)
+        {
+            if (keepFilter.accept(file))
+            {
+                LOGGER.info("Keeping file from previous execution: " + file.getAbsolutePath());
+                continue;
+            }
+            try
+            {
+                FileUtils.forceDelete(file);
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Failed to delete file in temporary directory: " + file.getAbsolutePath(), e);
+                return false;
+            }
+        }
+        return true;
+    }
 
+    public static boolean zipFiles(String zipOutputFilePath, String inputFilesDir) throws IOException
+    {
         File[] productDataFiles = (new File(inputFilesDir)).listFiles();
         if (productDataFiles == null || productDataFiles.length == 0)
         {
             return false;
         }
-        for (File dataFile : productDataFiles)
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(zipOutputFilePath), 65536)))
         {
-            ZipEntry zipEntry = new ZipEntry(dataFile.getName());
-            zos.putNextEntry(zipEntry);
-
-            FileInputStream fis = new FileInputStream(dataFile.getAbsolutePath());
-
-            int bytesRead;
-            byte[] buffer = new byte[8192];
-            while ((bytesRead = fis.read(buffer)) > 0)
+            for (File dataFile : productDataFiles)
             {
-                zos.write(buffer, 0, bytesRead);
+                zos.putNextEntry(new ZipEntry(dataFile.getName()));
+                try (FileInputStream fis = new FileInputStream(dataFile))
+                {
+                    ChannelIO.copy(fis, zos, "zip");
+                }
+                zos.closeEntry();
             }
-
-            fis.close();
         }
-
-        zos.flush();
-        zos.close();
-        fos.flush();
-        fos.close();
         return true;
     }
 }
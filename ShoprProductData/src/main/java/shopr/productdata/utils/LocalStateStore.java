@@ -0,0 +1,111 @@
+package shopr.productdata.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Created by Neil on 11/3/2016.
+ *
+ * Small on-disk store for state that has to outlive a pipeline's temporary directory, which is deleted after every
+ * successful run. Lives under dir.state, defaulting to ~/.shopr.
+ *
+ * @author Neil Allison
+ */
+public final class LocalStateStore
+{
+    private static final Logger LOGGER = Logger.getLogger(LocalStateStore.class);
+
+    private final Path stateDir;
+
+    private LocalStateStore()
+    {
+        stateDir = Paths.get(PropertiesLoader.getInstance().getProperty("dir.state",
+                System.getProperty("user.home") + File.separator + ".shopr"));
+        LocalFileSystemHandler.createDirectory(stateDir.toString());
+    }
+
+    private static class LocalStateStoreHolder
+    {
+        private static final LocalStateStore INSTANCE = new LocalStateStore();
+    }
+
+    public static LocalStateStore getInstance()
+    {
+        return LocalStateStoreHolder.INSTANCE;
+    }
+
+    public File getFile(String name)
+    {
+        return stateDir.resolve(name).toFile();
+    }
+
+    public synchronized Properties load(String name)
+    {
+        Properties properties = new Properties();
+        File file = getFile(name + ".properties");
+        if (file.exists())
+        {
+            try (InputStream is = new FileInputStream(file))
+            {
+                properties.load(is);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to read local state, starting empty: " + file, e);
+            }
+        }
+        return properties;
+    }
+
+    public synchronized boolean store(String name, Properties properties)
+    {
+        File file = getFile(name + ".properties");
+        File tmpFile = getFile(name + ".properties.tmp");
+        try
+        {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (OutputStream os = new FileOutputStream(tmpFile))
+            {
+                properties.store(os, null);
+            }
+            // Write then rename so a crash never leaves half a state file behind
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Failed to write local state: " + file, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces state name with the staged state pendingName, if one was staged. Returns false only on failure.
+     */
+    public synchronized boolean promote(String pendingName, String name)
+    {
+        File pendingFile = getFile(pendingName + ".properties");
+        if (!pendingFile.exists())
+        {
+            return true;
+        }
+        try
+        {
+            Files.move(pendingFile.toPath(), getFile(name + ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Failed to promote staged local state: " + pendingFile, e);
+            return false;
+        }
+        return true;
+    }
+}
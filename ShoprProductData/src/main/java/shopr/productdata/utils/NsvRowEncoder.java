@@ -0,0 +1,335 @@
+package shopr.productdata.utils;
+
+import shopr.productdata.objects.ShoprProductInfo;
+import shopr.productdata.objects.ShoprProductPrice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * Writes product_price and product_info rows in the format MySQLHandler loads them with: fields terminated by NUL,
+ * lines by LF, and the default backslash escaping of LOAD DATA. Rows are encoded straight to UTF-8 into a pooled
+ * ChannelIO buffer.
+ *
+ * @author Neil Allison
+ */
+public final class NsvRowEncoder implements Closeable
+{
+    private static final byte FIELD_SEPARATOR = 0;
+    private static final byte ROW_SEPARATOR = '\n';
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000};
+    private static final int MAX_PLAIN_DECIMALS = 3;
+
+    private final OutputStream out;
+    private final ByteBuffer pooledBuffer;
+    private final byte[] buffer;
+    private int position;
+    private long rows;
+    private Date lastDate;
+    private byte[] lastDateBytes;
+    private char[] chars = new char[256];
+
+    public NsvRowEncoder(OutputStream out)
+    {
+        this.out = out;
+        pooledBuffer = ChannelIO.acquireBuffer();
+        buffer = pooledBuffer.array();
+    }
+
+    public void write(ShoprProductPrice price) throws IOException
+    {
+        writeDate(price.getDs());
+        writeFieldSeparator();
+        writeString(price.getUpc());
+        writeFieldSeparator();
+        writeDouble(price.getRegularPrice());
+        writeFieldSeparator();
+        writeDouble(price.getSalePrice());
+        writeFieldSeparator();
+        writeString(price.getVendor());
+        endRow();
+    }
+
+    public void write(ShoprProductInfo info) throws IOException
+    {
+        writeString(info.getUpc());
+        writeFieldSeparator();
+        writeString(info.getName());
+        writeFieldSeparator();
+        writeString(info.getImage());
+        writeFieldSeparator();
+        writeString(info.getThumbnail());
+        writeFieldSeparator();
+        writeString(info.getShortDescription());
+        writeFieldSeparator();
+        writeString(info.getLongDescription());
+        writeFieldSeparator();
+        writeLong(info.getCustomerReviewCount());
+        writeFieldSeparator();
+        writeString(info.getCustomerReviewAverage());
+        writeFieldSeparator();
+        writeString(info.getVendor());
+        writeFieldSeparator();
+        writeString(info.getCategoryPath());
+        endRow();
+    }
+
+    public long getRows()
+    {
+        return rows;
+    }
+
+    public void flush() throws IOException
+    {
+        if (position > 0)
+        {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            ChannelIO.releaseBuffer(pooledBuffer);
+            out.close();
+        }
+    }
+
+    private void writeFieldSeparator() throws IOException
+    {
+        ensureCapacity(1);
+        buffer[position++] = FIELD_SEPARATOR;
+    }
+
+    private void endRow() throws IOException
+    {
+        ensureCapacity(1);
+        buffer[position++] = ROW_SEPARATOR;
+        rows++;
+    }
+
+    private void writeString(String value) throws IOException
+    {
+        // A null is an empty field. Values are never quoted, because the load does not strip quotes
+        if (value == null)
+        {
+            return;
+        }
+        int length = value.length();
+        if (chars.length < length)
+        {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        value.getChars(0, length, chars, 0);
+        int i = 0;
+        while (i < length)
+        {
+            // Room for three bytes a char, the most any char needs, plus one for a surrogate pair split across the end
+            int end = Math.min(length, i + (buffer.length - position - 1) / 3);
+            if (end == i)
+            {
+                out.write(buffer, 0, position);
+                position = 0;
+                continue;
+            }
+            int pos = position;
+            while (i < end)
+            {
+                char c = chars[i++];
+                if (c > '\r' && c < 0x80 && c != '\\')
+                {
+                    buffer[pos++] = (byte) c;
+                }
+                else if (c < 0x80)
+                {
+                    pos = writeEscaped(c, pos);
+                }
+                else if (c < 0x800)
+                {
+                    buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if (Character.isSurrogate(c))
+                {
+                    if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(chars[i]))
+                    {
+                        int codePoint = Character.toCodePoint(c, chars[i++]);
+                        buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                        buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+                    }
+                    else
+                    {
+                        // An unpaired surrogate, written as the UTF-8 encoder of a Writer would
+                        buffer[pos++] = '?';
+                    }
+                }
+                else
+                {
+                    buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            position = pos;
+        }
+    }
+
+    /**
+     * An ASCII char that is a backslash or a control char, escaped when LOAD DATA would otherwise misread it. A
+     * backslash, NUL, LF or CR becomes \\, \0, \n or \r, so no value can end its field or row early.
+     */
+    private int writeEscaped(char c, int pos)
+    {
+        switch (c)
+        {
+            case '\\':
+                buffer[pos++] = '\\';
+                buffer[pos++] = '\\';
+                break;
+            case '\0':
+                buffer[pos++] = '\\';
+                buffer[pos++] = '0';
+                break;
+            case '\n':
+                buffer[pos++] = '\\';
+                buffer[pos++] = 'n';
+                break;
+            case '\r':
+                buffer[pos++] = '\\';
+                buffer[pos++] = 'r';
+                break;
+            default:
+                buffer[pos++] = (byte) c;
+                break;
+        }
+        return pos;
+    }
+
+    private void writeLong(Long value) throws IOException
+    {
+        if (value != null)
+        {
+            writeLong(value.longValue());
+        }
+    }
+
+    private void writeLong(long value) throws IOException
+    {
+        // Long.MIN_VALUE has no positive counterpart
+        ensureCapacity(20);
+        if (value == Long.MIN_VALUE)
+        {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0)
+        {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10)
+        {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--)
+        {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Writes what Double.toString would, without building a String for values with up to three decimals, which is
+     * every price.
+     */
+    private void writeDouble(Double value) throws IOException
+    {
+        if (value == null)
+        {
+            return;
+        }
+        double v = value;
+        double magnitude = Math.abs(v);
+        // Double.toString switches to scientific notation outside this range
+        if (magnitude >= 1e-3 && magnitude < 1e7)
+        {
+            for (int decimals = 1; decimals <= MAX_PLAIN_DECIMALS; decimals++)
+            {
+                long scaled = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+                // The fewest decimals that read back as v, which is what Double.toString writes
+                if ((double) scaled / POWERS_OF_TEN[decimals] == magnitude)
+                {
+                    ensureCapacity(1);
+                    if (v < 0)
+                    {
+                        buffer[position++] = '-';
+                    }
+                    writeLong(scaled / POWERS_OF_TEN[decimals]);
+                    ensureCapacity(1 + decimals);
+                    buffer[position++] = '.';
+                    long fraction = scaled % POWERS_OF_TEN[decimals];
+                    for (int i = position + decimals - 1; i >= position; i--)
+                    {
+                        buffer[i] = (byte) ('0' + fraction % 10);
+                        fraction /= 10;
+                    }
+                    position += decimals;
+                    return;
+                }
+            }
+        }
+        writeAscii(Double.toString(v));
+    }
+
+    private void writeDate(Date date) throws IOException
+    {
+        if (date == null)
+        {
+            return;
+        }
+        if (date != lastDate)
+        {
+            lastDate = date;
+            lastDateBytes = date.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        ensureCapacity(lastDateBytes.length);
+        System.arraycopy(lastDateBytes, 0, buffer, position, lastDateBytes.length);
+        position += lastDateBytes.length;
+    }
+
+    private void writeAscii(String value) throws IOException
+    {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException
+    {
+        if (position + bytes > buffer.length)
+        {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
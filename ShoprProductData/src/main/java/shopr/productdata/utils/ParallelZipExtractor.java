@@ -0,0 +1,165 @@
+package shopr.productdata.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Created by Neil on 11/16/2016.
+ *
+ * Extracts the entries of a zip file in parallel. A ZipFile reads entries at random, so each entry inflates on its
+ * own worker.
+ *
+ * @author Neil Allison
+ */
+public class ParallelZipExtractor
+{
+    private static final Logger LOGGER = Logger.getLogger(ParallelZipExtractor.class);
+
+    private final String name;
+    private final int threads;
+
+    public interface EntryHandler
+    {
+        /**
+         * Called on the worker as soon as its entry is on disk, while the other entries are still being inflated.
+         * Returns false to fail the extraction.
+         */
+        boolean handle(File extractedFile);
+    }
+
+    public ParallelZipExtractor(String name, int threads)
+    {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Extracts every file entry into outputDir and hands each to entryHandler, which may be null. Stops at the first
+     * failure and returns false.
+     */
+    public boolean extract(File zipFile, File outputDir, EntryHandler entryHandler)
+    {
+        long startTime = System.currentTimeMillis();
+        try (ZipFile zip = new ZipFile(zipFile))
+        {
+            List<ZipEntry> entries = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zip.entries()))
+            {
+                if (!entry.isDirectory())
+                {
+                    entries.add(entry);
+                }
+            }
+            // Largest first, so one big entry does not run alone at the end
+            entries.sort(Comparator.comparingLong(ZipEntry::getCompressedSize).reversed());
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, entries.size())));
+            try
+            {
+                ExecutorCompletionService<Long> completionService = new ExecutorCompletionService<>(executor);
+                for (ZipEntry entry : entries)
+                {
+                    completionService.submit(() -> extractEntry(zip, entry, outputDir, entryHandler));
+                }
+                long totalBytes = 0;
+                for (int i = 0; i < entries.size(); i++)
+                {
+                    totalBytes += completionService.take().get();
+                }
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+                LOGGER.info(String.format("Extracted %d entries, %d MB in %s (%.1f MB/s) on %d threads", entries.size(),
+                        totalBytes / 1048576, Utils.formatTime(elapsedMillis), totalBytes / 1048576.0 / elapsedMillis * 1000,
+                        threads));
+                return true;
+            }
+            catch (ExecutionException e)
+            {
+                LOGGER.error("Extracting zip entry failed: " + zipFile, e.getCause());
+                return false;
+            }
+            catch (InterruptedException e)
+            {
+                LOGGER.error("Interrupted extracting zip file: " + zipFile, e);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                executor.shutdownNow();
+                try
+                {
+                    // Entries still reading must be done before the ZipFile is closed under them
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Opening zip file failed: " + zipFile, e);
+            return false;
+        }
+    }
+
+    private long extractEntry(ZipFile zip, ZipEntry entry, File outputDir, EntryHandler entryHandler) throws IOException
+    {
+        File outputFile = new File(outputDir, entry.getName());
+        if (!outputFile.getCanonicalPath().startsWith(outputDir.getCanonicalPath() + File.separator))
+        {
+            throw new IOException("Zip entry would be extracted outside the output directory: " + entry.getName());
+        }
+        File parentDir = outputFile.getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists())
+        {
+            throw new IOException("Failed to create directory: " + parentDir);
+        }
+
+        long startNanos = System.nanoTime();
+        long bytes;
+        try (
+                InputStream is = zip.getInputStream(entry);
+                FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+        )
+        {
+            bytes = ChannelIO.copy(is, channel, 0, -1, name + ".extract", (buffer, offset, length) ->
+            {
+                if (Thread.currentThread().isInterrupted())
+                {
+                    throw new IOException("Extraction cancelled: " + entry.getName());
+                }
+            });
+        }
+
+        double elapsedSeconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        LOGGER.info(String.format("Extracted %s: %d MB in %.1fs (%.1f MB/s)", entry.getName(), bytes / 1048576,
+                elapsedSeconds, bytes / 1048576.0 / elapsedSeconds));
+        PipelineMetrics.getInstance().add(name + ".extract.bytes", bytes);
+        PipelineMetrics.getInstance().increment(name + ".extract.entries");
+
+        if (entryHandler != null && !entryHandler.handle(outputFile))
+        {
+            throw new IOException("Processing extracted entry failed: " + entry.getName());
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,90 @@
+package shopr.productdata.utils;
+
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Neil on 11/10/2016.
+ *
+ * Process wide counters and gauges for the retrieval layer. Names are dotted and start with the component that
+ * owns them, e.g. walmart.concurrency.limit.
+ *
+ * @author Neil Allison
+ */
+public final class PipelineMetrics
+{
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    private PipelineMetrics()
+    {
+    }
+
+    private static class PipelineMetricsHolder
+    {
+        private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+    }
+
+    public static PipelineMetrics getInstance()
+    {
+        return PipelineMetricsHolder.INSTANCE;
+    }
+
+    public long increment(String name)
+    {
+        return add(name, 1);
+    }
+
+    public long add(String name, long delta)
+    {
+        return counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public void setGauge(String name, long value)
+    {
+        gauges.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    public long get(String name)
+    {
+        AtomicLong value = counters.get(name);
+        if (value == null)
+        {
+            value = gauges.get(name);
+        }
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Sorted copy of every counter and gauge whose name starts with prefix.
+     */
+    public Map<String, Long> snapshot(String prefix)
+    {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, value) -> {
+            if (name.startsWith(prefix))
+            {
+                snapshot.put(name, value.get());
+            }
+        });
+        gauges.forEach((name, value) -> {
+            if (name.startsWith(prefix))
+            {
+                snapshot.put(name, value.get());
+            }
+        });
+        return snapshot;
+    }
+
+    public void logSnapshot(Logger logger, String prefix)
+    {
+        for (Map.Entry<String, Long> metric : snapshot(prefix).entrySet())
+        {
+            logger.info(String.format("Metric %s = %d", metric.getKey(), metric.getValue()));
+        }
+    }
+}
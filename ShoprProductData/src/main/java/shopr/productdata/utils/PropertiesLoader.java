@@ -52,4 +52,9 @@ public final class PropertiesLoader
     {
         return properties.getProperty(propertyKey);
     }
+
+    public String getProperty(String propertyKey, String defaultValue)
+    {
+        return properties.getProperty(propertyKey, defaultValue);
+    }
 }
@@ -0,0 +1,369 @@
+package shopr.productdata.utils;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.RequestOutcome;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Neil on 11/9/2016.
+ *
+ * Runs vendor API GETs through the API key's token bucket and retries 429, 5xx and I/O errors with jittered
+ * exponential backoff. Retrying stops early once the caller's circuit breaker opens.
+ *
+ * @author Neil Allison
+ */
+public class RateLimitedRequestExecutor
+{
+    private static final Logger LOGGER = Logger.getLogger(RateLimitedRequestExecutor.class);
+
+    private final HttpClient httpClient;
+    private final AimdConcurrencyLimiter concurrencyLimiter;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final LatencyTracker latencyTracker = new LatencyTracker(256, 20);
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private ExecutorService hedgeExecutor;
+    private double hedgePercentile;
+    private double maxHedgeRatio;
+    private String metricsPrefix = "http";
+
+    /**
+     * With a concurrency limiter every attempt also holds one of its slots while waiting for the response headers,
+     * and reports its latency and outcome back to it.
+     */
+    public RateLimitedRequestExecutor(HttpClient httpClient, AimdConcurrencyLimiter concurrencyLimiter,
+                                      int maxAttempts, long baseDelayMillis, long maxDelayMillis)
+    {
+        this.httpClient = httpClient;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Opt-in request hedging. An attempt that is still waiting for its response after the hedgePercentile latency of
+     * recent requests gets a duplicate request. The first response wins and the other request is aborted. Hedges are
+     * capped at maxHedgeRatio of all requests. Each one takes a token from the bucket and a slot from the concurrency
+     * limiter like any other request, and is skipped when no slot is free.
+     */
+    public void enableHedging(ExecutorService hedgeExecutor, double hedgePercentile, double maxHedgeRatio,
+                              String metricsPrefix)
+    {
+        this.hedgeExecutor = hedgeExecutor;
+        this.hedgePercentile = hedgePercentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    public static boolean isRetryable(int statusCode)
+    {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Returns the first response that is not retryable, or the last response once the attempts run out or the
+     * breaker opens. A returned response with a retryable status therefore means the request gave up. Throws the
+     * last I/O error if no attempt got a response at all.
+     *
+     * Tokens come from the pooled key's own bucket, and every attempt is charged to the key's budget and 429 count.
+     * The URL must already carry the key.
+     */
+    public HttpResponse execute(String url, CircuitBreaker breaker, ApiKeyPool.ApiKey apiKey)
+            throws IOException, InterruptedException
+    {
+        TokenBucket bucket = apiKey.getTokenBucket();
+        IOException lastException = null;
+        HttpResponse httpResponse = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++)
+        {
+            if (httpResponse != null)
+            {
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+            }
+            bucket.acquire();
+            long startNanos = concurrencyLimiter == null ? 0 : concurrencyLimiter.acquire();
+            RequestOutcome outcome;
+            try
+            {
+                httpResponse = hedgeExecutor == null ? timedExecute(new HttpGet(url))
+                        : executeHedged(url, bucket, apiKey);
+                lastException = null;
+                outcome = toOutcome(httpResponse.getStatusLine().getStatusCode());
+            }
+            catch (SocketTimeoutException | ConnectTimeoutException e)
+            {
+                httpResponse = null;
+                lastException = e;
+                outcome = RequestOutcome.TIMEOUT;
+            }
+            catch (IOException e)
+            {
+                httpResponse = null;
+                lastException = e;
+                outcome = RequestOutcome.ERROR;
+            }
+            catch (InterruptedException e)
+            {
+                if (concurrencyLimiter != null)
+                {
+                    concurrencyLimiter.abandon();
+                }
+                throw e;
+            }
+            if (concurrencyLimiter != null)
+            {
+                concurrencyLimiter.release(startNanos, outcome);
+            }
+            apiKey.recordRequest();
+            if (outcome == RequestOutcome.THROTTLED)
+            {
+                apiKey.recordThrottled();
+            }
+            else if (outcome == RequestOutcome.SUCCESS)
+            {
+                apiKey.recordSuccess();
+            }
+
+            if (httpResponse != null && !isRetryable(httpResponse.getStatusLine().getStatusCode()))
+            {
+                breaker.recordSuccess();
+                return httpResponse;
+            }
+
+            String failure = httpResponse != null ? httpResponse.getStatusLine().toString() : lastException.toString();
+            if (breaker.recordFailure())
+            {
+                LOGGER.warn(String.format("Circuit breaker for %s opened after: %s", breaker.getName(), failure));
+                break;
+            }
+            if (breaker.isOpen() || attempt == maxAttempts)
+            {
+                break;
+            }
+
+            long delayMillis = getBackoffMillis(attempt, httpResponse);
+            LOGGER.warn(String.format("Attempt %d of %d for %s failed (%s), retrying in %dms", attempt, maxAttempts,
+                    Utils.stripApiKey(url), failure, delayMillis));
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+        }
+
+        if (httpResponse != null)
+        {
+            return httpResponse;
+        }
+        throw lastException;
+    }
+
+    private HttpResponse timedExecute(HttpGet request) throws IOException
+    {
+        long startNanos = System.nanoTime();
+        HttpResponse httpResponse = httpClient.execute(request);
+        latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return httpResponse;
+    }
+
+    private HttpResponse executeHedged(String url, TokenBucket bucket, ApiKeyPool.ApiKey apiKey)
+            throws IOException, InterruptedException
+    {
+        requestCount.incrementAndGet();
+        long hedgeDelayMillis = latencyTracker.getPercentile(hedgePercentile);
+        CompletionService<HttpResponse> completionService = new ExecutorCompletionService<>(hedgeExecutor);
+        HttpGet primaryRequest = new HttpGet(url);
+        HttpGet hedgeRequest = new HttpGet(url);
+        Future<HttpResponse> primary = completionService.submit(() -> timedExecute(primaryRequest));
+        try
+        {
+            return race(url, bucket, apiKey, hedgeDelayMillis, completionService, primary, primaryRequest,
+                    hedgeRequest);
+        }
+        catch (InterruptedException e)
+        {
+            // Both exchanges would otherwise keep running and hold connections from the shared pool
+            primaryRequest.abort();
+            hedgeRequest.abort();
+            primary.cancel(true);
+            throw e;
+        }
+    }
+
+    private HttpResponse race(String url, TokenBucket bucket, ApiKeyPool.ApiKey apiKey, long hedgeDelayMillis,
+                              CompletionService<HttpResponse> completionService, Future<HttpResponse> primary,
+                              HttpGet primaryRequest, HttpGet hedgeRequest) throws IOException, InterruptedException
+    {
+        if (hedgeDelayMillis < 0)
+        {
+            return getResponse(primary);
+        }
+
+        Future<HttpResponse> first = completionService.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        if (first != null)
+        {
+            return getResponse(first);
+        }
+        if (hedgeCount.get() + 1 > requestCount.get() * maxHedgeRatio)
+        {
+            PipelineMetrics.getInstance().increment(metricsPrefix + ".hedge.capped");
+            return getResponse(primary);
+        }
+        long hedgeStartNanos = concurrencyLimiter == null ? 0 : concurrencyLimiter.tryAcquire();
+        if (hedgeStartNanos < 0)
+        {
+            PipelineMetrics.getInstance().increment(metricsPrefix + ".hedge.noslot");
+            return getResponse(primary);
+        }
+
+        try
+        {
+            bucket.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            if (concurrencyLimiter != null)
+            {
+                concurrencyLimiter.abandon();
+            }
+            throw e;
+        }
+        apiKey.recordRequest();
+        hedgeCount.incrementAndGet();
+        PipelineMetrics.getInstance().increment(metricsPrefix + ".hedge.sent");
+        LOGGER.debug(String.format("No response for %s after %dms, sending hedge request", Utils.stripApiKey(url),
+                hedgeDelayMillis));
+        Future<HttpResponse> hedge = completionService.submit(() -> timedExecute(hedgeRequest));
+
+        try
+        {
+            Future<HttpResponse> winner = completionService.take();
+            Future<HttpResponse> loser = winner == primary ? hedge : primary;
+            HttpResponse httpResponse = getResponse(winner);
+            // Aborting the request also releases a response that may have arrived in the meantime
+            (winner == primary ? hedgeRequest : primaryRequest).abort();
+            loser.cancel(true);
+            if (winner == hedge)
+            {
+                PipelineMetrics.getInstance().increment(metricsPrefix + ".hedge.won");
+            }
+            return httpResponse;
+        }
+        catch (IOException e)
+        {
+            // The first one to finish failed, the other one may still succeed
+            return getResponse(completionService.take());
+        }
+        catch (InterruptedException e)
+        {
+            hedgeRequest.abort();
+            hedge.cancel(true);
+            throw e;
+        }
+        finally
+        {
+            if (concurrencyLimiter != null)
+            {
+                releaseHedgeSlot(hedge, hedgeRequest, hedgeStartNanos);
+            }
+        }
+    }
+
+    /**
+     * A hedge that lost the race was aborted and says nothing about the endpoint, so its slot is freed unjudged.
+     */
+    private void releaseHedgeSlot(Future<HttpResponse> hedge, HttpGet hedgeRequest, long startNanos)
+    {
+        if (hedgeRequest.isAborted() || !hedge.isDone())
+        {
+            concurrencyLimiter.abandon();
+            return;
+        }
+        RequestOutcome outcome;
+        try
+        {
+            outcome = toOutcome(getResponse(hedge).getStatusLine().getStatusCode());
+        }
+        catch (SocketTimeoutException | ConnectTimeoutException e)
+        {
+            outcome = RequestOutcome.TIMEOUT;
+        }
+        catch (IOException e)
+        {
+            outcome = RequestOutcome.ERROR;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            outcome = RequestOutcome.ERROR;
+        }
+        concurrencyLimiter.release(startNanos, outcome);
+    }
+
+    private static HttpResponse getResponse(Future<HttpResponse> future) throws IOException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Request failed", e.getCause());
+        }
+    }
+
+    private static RequestOutcome toOutcome(int statusCode)
+    {
+        if (statusCode == 429)
+        {
+            return RequestOutcome.THROTTLED;
+        }
+        if (statusCode == 504)
+        {
+            return RequestOutcome.TIMEOUT;
+        }
+        return statusCode >= 500 ? RequestOutcome.ERROR : RequestOutcome.SUCCESS;
+    }
+
+    /**
+     * Equal jitter: half of the exponential delay is fixed and half is random, so workers that failed together
+     * do not retry together. A Retry-After header in seconds is honoured as a lower bound.
+     */
+    private long getBackoffMillis(int attempt, HttpResponse httpResponse)
+    {
+        long exponentialDelay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        long delayMillis = exponentialDelay / 2 + ThreadLocalRandom.current().nextLong(exponentialDelay / 2 + 1);
+        Header retryAfter = httpResponse == null ? null : httpResponse.getFirstHeader("Retry-After");
+        if (retryAfter != null)
+        {
+            try
+            {
+                delayMillis = Math.max(delayMillis, Long.parseLong(retryAfter.getValue().trim()) * 1000);
+            }
+            catch (NumberFormatException e)
+            {
+                // HTTP-date form, keep the computed delay
+            }
+        }
+        return delayMillis;
+    }
+}
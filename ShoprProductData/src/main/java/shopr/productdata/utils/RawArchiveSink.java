@@ -0,0 +1,379 @@
+package shopr.productdata.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Created by Neil on 11/6/2016.
+ *
+ * Output stream that archives raw vendor payloads while the pipeline reads them, so archiving needs no second pass
+ * over the data on disk. Archiving is best effort: after the first write error the archive is dropped and the
+ * pipeline keeps going.
+ *
+ * @author Neil Allison
+ */
+public abstract class RawArchiveSink extends OutputStream
+{
+    private static final Logger LOGGER = Logger.getLogger(RawArchiveSink.class);
+
+    protected final String archiveKey;
+    private boolean failed;
+    private boolean closed;
+
+    protected RawArchiveSink(String archiveKey)
+    {
+        this.archiveKey = archiveKey;
+    }
+
+    /**
+     * Returns a sink for the given S3 key (or path under dir.archive), or null when archive.raw.target is none.
+     */
+    public static RawArchiveSink open(String archiveKey)
+    {
+        String target = PropertiesLoader.getInstance().getProperty("archive.raw.target", "s3");
+        if ("s3".equalsIgnoreCase(target))
+        {
+            return new S3MultipartSink(Constants.SHOPR_S3_DATA_BUCKET, archiveKey);
+        }
+        if ("local".equalsIgnoreCase(target))
+        {
+            return new LocalFileSink(archiveKey);
+        }
+        LOGGER.info("Raw payload archiving is disabled, not archiving: " + archiveKey);
+        return null;
+    }
+
+    /**
+     * Archives a payload that already sits on disk, for the cases where it could not be captured while streaming.
+     */
+    public static boolean archiveFile(String archiveKey, File file)
+    {
+        String target = PropertiesLoader.getInstance().getProperty("archive.raw.target", "s3");
+        if ("s3".equalsIgnoreCase(target))
+        {
+            return S3Handler.uploadToS3(Constants.SHOPR_S3_DATA_BUCKET, archiveKey, file);
+        }
+        if ("local".equalsIgnoreCase(target))
+        {
+            LocalFileSink sink = new LocalFileSink(archiveKey);
+            try
+            {
+                Files.createDirectories(sink.archiveFile.getParent());
+                Files.copy(file.toPath(), sink.archiveFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to archive raw payload: " + sink.archiveFile, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isFailed()
+    {
+        return failed;
+    }
+
+    @Override
+    public void write(int b)
+    {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        if (failed || closed)
+        {
+            return;
+        }
+        try
+        {
+            doWrite(b, off, len);
+        }
+        catch (IOException | AmazonClientException e)
+        {
+            LOGGER.warn("Raw payload archiving failed, continuing without an archive: " + archiveKey, e);
+            failed = true;
+        }
+    }
+
+    /**
+     * Finishes the archive. A sink that failed along the way is aborted instead.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        if (failed)
+        {
+            abort();
+            return;
+        }
+        closed = true;
+        try
+        {
+            doComplete();
+            LOGGER.info("Archived raw payload: " + archiveKey);
+        }
+        catch (IOException | AmazonClientException e)
+        {
+            LOGGER.warn("Failed to complete raw payload archive: " + archiveKey, e);
+            doAbort();
+        }
+    }
+
+    /**
+     * Throws away everything written so far, used when the payload being archived turned out to be incomplete.
+     */
+    public void abort()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        doAbort();
+    }
+
+    protected abstract void doWrite(byte[] b, int off, int len) throws IOException;
+
+    protected abstract void doComplete() throws IOException;
+
+    protected abstract void doAbort();
+
+    private static class LocalFileSink extends RawArchiveSink
+    {
+        private final Path archiveFile;
+        private final Path partialFile;
+        private OutputStream os;
+
+        LocalFileSink(String archiveKey)
+        {
+            super(archiveKey);
+            archiveFile = Paths.get(PropertiesLoader.getInstance().getProperty("dir.archive",
+                    System.getProperty("user.home") + File.separator + ".shopr" + File.separator + "archive"), archiveKey);
+            partialFile = Paths.get(archiveFile.toString() + ".part");
+        }
+
+        @Override
+        protected void doWrite(byte[] b, int off, int len) throws IOException
+        {
+            if (os == null)
+            {
+                Files.createDirectories(archiveFile.getParent());
+                os = new BufferedOutputStream(new FileOutputStream(partialFile.toFile()), 65536);
+            }
+            os.write(b, off, len);
+        }
+
+        @Override
+        protected void doComplete() throws IOException
+        {
+            if (os == null)
+            {
+                return;
+            }
+            os.close();
+            Files.move(partialFile, archiveFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        protected void doAbort()
+        {
+            try
+            {
+                if (os != null)
+                {
+                    os.close();
+                }
+                Files.deleteIfExists(partialFile);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to delete partial raw payload archive: " + partialFile, e);
+            }
+        }
+    }
+
+    /**
+     * Cuts the stream into parts and uploads them from a background thread while the next part fills up. At most
+     * MAX_PARTS_IN_FLIGHT buffers are held, so a slow upload throttles the writer instead of growing the heap.
+     */
+    private static class S3MultipartSink extends RawArchiveSink
+    {
+        private static final int PART_SIZE = 8 * 1048576;
+        private static final int MAX_PARTS_IN_FLIGHT = 2;
+
+        private final String bucket;
+        private final AmazonS3Client s3Client = new AmazonS3Client(new ProfileCredentialsProvider());
+        private final ExecutorService uploadExecutor = Executors.newSingleThreadExecutor();
+        private final Semaphore partsInFlight = new Semaphore(MAX_PARTS_IN_FLIGHT);
+        private final List<Future<PartETag>> parts = new ArrayList<>();
+        private String uploadId;
+        private byte[] buffer = new byte[PART_SIZE];
+        private int buffered;
+
+        S3MultipartSink(String bucket, String archiveKey)
+        {
+            super(archiveKey);
+            this.bucket = bucket;
+        }
+
+        @Override
+        protected void doWrite(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                int n = Math.min(len, PART_SIZE - buffered);
+                System.arraycopy(b, off, buffer, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                if (buffered == PART_SIZE)
+                {
+                    uploadPart();
+                }
+            }
+        }
+
+        @Override
+        protected void doComplete() throws IOException
+        {
+            if (buffered > 0 || uploadId == null)
+            {
+                uploadPart();
+            }
+            List<PartETag> partETags = new ArrayList<>();
+            try
+            {
+                for (Future<PartETag> part : parts)
+                {
+                    partETags.add(part.get());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for part uploads");
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException("Part upload failed", e.getCause());
+            }
+            finally
+            {
+                uploadExecutor.shutdown();
+            }
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, archiveKey, uploadId, partETags));
+        }
+
+        @Override
+        protected void doAbort()
+        {
+            uploadExecutor.shutdownNow();
+            if (uploadId == null)
+            {
+                return;
+            }
+            try
+            {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, archiveKey, uploadId));
+            }
+            catch (AmazonClientException e)
+            {
+                LOGGER.warn("Failed to abort multipart upload, S3 lifecycle rules will clean it up: " + archiveKey, e);
+            }
+        }
+
+        private void uploadPart() throws IOException
+        {
+            if (uploadId == null)
+            {
+                uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, archiveKey))
+                        .getUploadId();
+            }
+            for (Future<PartETag> part : parts)
+            {
+                if (part.isDone())
+                {
+                    checkPart(part);
+                }
+            }
+
+            try
+            {
+                partsInFlight.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a part upload slot");
+            }
+            int partNumber = parts.size() + 1;
+            byte[] partData = buffer;
+            int partLength = buffered;
+            parts.add(uploadExecutor.submit(() ->
+            {
+                try
+                {
+                    return s3Client.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(archiveKey)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withInputStream(new ByteArrayInputStream(partData, 0, partLength))
+                            .withPartSize(partLength))
+                            .getPartETag();
+                }
+                finally
+                {
+                    partsInFlight.release();
+                }
+            }));
+            buffer = new byte[PART_SIZE];
+            buffered = 0;
+        }
+
+        private static void checkPart(Future<PartETag> part) throws IOException
+        {
+            try
+            {
+                part.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted checking a part upload");
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException("Part upload failed", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package shopr.productdata.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.*;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.HttpCacheMode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Created by Neil on 11/15/2016.
+ *
+ * Development cache in front of an HttpClient. RECORD mode stores every complete 200 response to a plain GET, and
+ * REPLAY mode answers GET and HEAD from the cache only, so the pipelines run offline at disk speed.
+ *
+ * @author Neil Allison
+ */
+public class RecordReplayHttpClient extends CloseableHttpClient
+{
+    private static final Logger LOGGER = Logger.getLogger(RecordReplayHttpClient.class);
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Set<String> UNRECORDED_HEADERS = new HashSet<>(Arrays.asList("content-length",
+            "content-encoding", "transfer-encoding", "connection", "keep-alive", "set-cookie", "accept-ranges"));
+
+    private final CloseableHttpClient delegate;
+    private final HttpCacheMode mode;
+    private final Path indexDir;
+    private final Path blobDir;
+    private final long replayLatencyMillis;
+
+    public RecordReplayHttpClient(CloseableHttpClient delegate, HttpCacheMode mode, File cacheDir,
+                                  long replayLatencyMillis)
+    {
+        this.delegate = delegate;
+        this.mode = mode;
+        this.indexDir = cacheDir.toPath().resolve("index");
+        this.blobDir = cacheDir.toPath().resolve("blobs");
+        this.replayLatencyMillis = replayLatencyMillis;
+        LocalFileSystemHandler.createDirectory(indexDir.toString());
+        LocalFileSystemHandler.createDirectory(blobDir.toString());
+    }
+
+    /**
+     * The cache key of a URL: no apiKey, query parameters in a fixed order.
+     */
+    public static String normalizeUrl(String url)
+    {
+        String stripped = Utils.stripApiKey(url);
+        int queryStart = stripped.indexOf('?');
+        if (queryStart < 0)
+        {
+            return stripped;
+        }
+        String[] parameters = stripped.substring(queryStart + 1).split("&");
+        Arrays.sort(parameters);
+        return stripped.substring(0, queryStart + 1) + String.join("&", parameters);
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException
+    {
+        String url = request instanceof HttpUriRequest && ((HttpUriRequest) request).getURI().isAbsolute()
+                ? ((HttpUriRequest) request).getURI().toString()
+                : target.toURI() + request.getRequestLine().getUri();
+        String method = request.getRequestLine().getMethod();
+        String normalizedUrl = normalizeUrl(url);
+
+        if (mode == HttpCacheMode.REPLAY)
+        {
+            if (!"GET".equals(method) && !"HEAD".equals(method))
+            {
+                throw new IOException(String.format("Cannot replay %s %s", method, normalizedUrl));
+            }
+            return replay(request, normalizedUrl, "HEAD".equals(method));
+        }
+
+        boolean recordable = "GET".equals(method) && !request.containsHeader(HttpHeaders.RANGE);
+        if (recordable)
+        {
+            // A 304 would leave nothing to record, so every recorded run gets a body
+            request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+            request.removeHeaders(HttpHeaders.IF_MODIFIED_SINCE);
+        }
+        CloseableHttpResponse response = delegate.execute(target, request, context);
+        if ("HEAD".equals(method))
+        {
+            // Downloads then use one stream, which can be recorded whole
+            response.removeHeaders(HttpHeaders.ACCEPT_RANGES);
+        }
+        else if (recordable && response.getStatusLine().getStatusCode() == HttpStatus.SC_OK
+                && response.getEntity() != null)
+        {
+            response.setEntity(new RecordingEntity(response.getEntity(), response, normalizedUrl));
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public org.apache.http.params.HttpParams getParams()
+    {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public org.apache.http.conn.ClientConnectionManager getConnectionManager()
+    {
+        return delegate.getConnectionManager();
+    }
+
+    private CloseableHttpResponse replay(HttpRequest request, String normalizedUrl, boolean head) throws IOException
+    {
+        Path indexFile = getIndexFile(normalizedUrl);
+        if (!Files.exists(indexFile))
+        {
+            throw new IOException("No recorded response for " + normalizedUrl);
+        }
+        Properties entry = new Properties();
+        try (InputStream is = Files.newInputStream(indexFile))
+        {
+            entry.load(is);
+        }
+        if (replayLatencyMillis > 0)
+        {
+            try
+            {
+                Thread.sleep(replayLatencyMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted replaying " + normalizedUrl);
+            }
+        }
+
+        long length = Long.parseLong(entry.getProperty("length"));
+        ReplayedResponse response = new ReplayedResponse(Integer.parseInt(entry.getProperty("status")),
+                entry.getProperty("reason"));
+        for (int i = 0; entry.getProperty("header." + i + ".name") != null; i++)
+        {
+            response.addHeader(entry.getProperty("header." + i + ".name"), entry.getProperty("header." + i + ".value"));
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (head)
+        {
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+            return response;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        Header range = request.getFirstHeader(HttpHeaders.RANGE);
+        if (range != null)
+        {
+            Matcher matcher = RANGE.matcher(range.getValue());
+            if (matcher.matches())
+            {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty())
+                {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+                response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, length));
+            }
+        }
+
+        InputStream content = new GZIPInputStream(Files.newInputStream(blobDir.resolve(entry.getProperty("blob"))),
+                65536);
+        try
+        {
+            IOUtils.skipFully(content, start);
+        }
+        catch (IOException e)
+        {
+            content.close();
+            throw e;
+        }
+        Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        response.setEntity(new InputStreamEntity(new BoundedInputStream(content, end - start + 1), end - start + 1,
+                contentType == null ? null : ContentType.parse(contentType.getValue())));
+        return response;
+    }
+
+    private Path getIndexFile(String normalizedUrl)
+    {
+        byte[] digest = Utils.createContentDigest().digest(normalizedUrl.getBytes(StandardCharsets.UTF_8));
+        return indexDir.resolve(Utils.toHexString(digest) + ".properties");
+    }
+
+    /**
+     * Hands the caller the response body and stores a copy of it once the caller has read it to the end. A body that
+     * is closed or aborted early is not recorded.
+     */
+    private final class RecordingEntity extends HttpEntityWrapper
+    {
+        private final HttpResponse response;
+        private final String normalizedUrl;
+        private InputStream content;
+
+        private RecordingEntity(HttpEntity entity, HttpResponse response, String normalizedUrl)
+        {
+            super(entity);
+            this.response = response;
+            this.normalizedUrl = normalizedUrl;
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException
+        {
+            if (content == null)
+            {
+                content = new RecordingInputStream(super.getContent(), response, normalizedUrl);
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException
+        {
+            try (InputStream is = getContent())
+            {
+                IOUtils.copyLarge(is, outStream);
+            }
+        }
+    }
+
+    private final class RecordingInputStream extends FilterInputStream
+    {
+        private final HttpResponse response;
+        private final String normalizedUrl;
+        private final MessageDigest digest = Utils.createContentDigest();
+        private File tmpFile;
+        private OutputStream recording;
+        private long length;
+        private boolean finished;
+
+        private RecordingInputStream(InputStream in, HttpResponse response, String normalizedUrl)
+        {
+            super(in);
+            this.response = response;
+            this.normalizedUrl = normalizedUrl;
+            try
+            {
+                tmpFile = Files.createTempFile(blobDir, "recording", ".tmp").toFile();
+                recording = new DigestOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile), 65536), digest);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Cannot record response for " + normalizedUrl, e);
+                discard();
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b < 0)
+            {
+                finish();
+            }
+            else if (recording != null)
+            {
+                record(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead < 0)
+            {
+                finish();
+            }
+            else if (recording != null)
+            {
+                record(b, off, bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // Skipped bytes still have to end up in the recording
+            return IOUtils.skip(this, n);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                if (!finished)
+                {
+                    discard();
+                }
+            }
+        }
+
+        private void record(byte[] b, int off, int len)
+        {
+            try
+            {
+                recording.write(b, off, len);
+                length += len;
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Recording response failed for " + normalizedUrl, e);
+                discard();
+            }
+        }
+
+        private void finish()
+        {
+            if (finished || recording == null)
+            {
+                return;
+            }
+            finished = true;
+            try
+            {
+                recording.close();
+                recording = null;
+                String blobName = Utils.toHexString(digest.digest()) + ".gz";
+                Path blob = blobDir.resolve(blobName);
+                if (Files.exists(blob))
+                {
+                    Files.delete(tmpFile.toPath());
+                }
+                else
+                {
+                    Files.move(tmpFile.toPath(), blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+                writeIndexEntry(blobName);
+                LOGGER.debug(String.format("Recorded %d bytes for %s", length, normalizedUrl));
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Storing recorded response failed for " + normalizedUrl, e);
+                discard();
+            }
+        }
+
+        private void writeIndexEntry(String blobName) throws IOException
+        {
+            Properties entry = new Properties();
+            entry.setProperty("url", normalizedUrl);
+            entry.setProperty("status", String.valueOf(response.getStatusLine().getStatusCode()));
+            entry.setProperty("reason", String.valueOf(response.getStatusLine().getReasonPhrase()));
+            entry.setProperty("length", String.valueOf(length));
+            entry.setProperty("blob", blobName);
+            int i = 0;
+            for (Header header : response.getAllHeaders())
+            {
+                if (!UNRECORDED_HEADERS.contains(header.getName().toLowerCase()))
+                {
+                    entry.setProperty("header." + i + ".name", header.getName());
+                    entry.setProperty("header." + i + ".value", header.getValue());
+                    i++;
+                }
+            }
+            Path indexFile = getIndexFile(normalizedUrl);
+            Path tmpIndexFile = Files.createTempFile(indexDir, "entry", ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmpIndexFile))
+            {
+                entry.store(os, null);
+            }
+            Files.move(tmpIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void discard()
+        {
+            finished = true;
+            if (recording != null)
+            {
+                IOUtils.closeQuietly(recording);
+                recording = null;
+            }
+            if (tmpFile != null && !tmpFile.delete() && tmpFile.exists())
+            {
+                LOGGER.warn("Failed to delete partial recording: " + tmpFile);
+            }
+        }
+    }
+
+    private static final class ReplayedResponse extends BasicHttpResponse implements CloseableHttpResponse
+    {
+        private ReplayedResponse(int status, String reason)
+        {
+            super(HttpVersion.HTTP_1_1, status, reason);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            HttpEntity entity = getEntity();
+            if (entity != null && entity.isStreaming())
+            {
+                entity.getContent().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package shopr.productdata.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Neil on 11/9/2016.
+ *
+ * Request rate limiter shared by every caller that uses the same API key. A caller that finds the bucket empty
+ * reserves the next token and sleeps until it is due, so waiting callers are served in order.
+ *
+ * @author Neil Allison
+ */
+public final class TokenBucket
+{
+    private static final Map<String, TokenBucket> BUCKETS = new ConcurrentHashMap<>();
+
+    private final double permitsPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    private TokenBucket(double permitsPerSecond, int capacity)
+    {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the bucket for an API key, creating it with the given quota on first use.
+     */
+    public static TokenBucket forKey(String apiKey, double permitsPerSecond, int capacity)
+    {
+        return BUCKETS.computeIfAbsent(apiKey, k -> new TokenBucket(permitsPerSecond, capacity));
+    }
+
+    public void acquire() throws InterruptedException
+    {
+        long waitNanos;
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerSecond / 1e9);
+            lastRefillNanos = now;
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / permitsPerSecond * 1e9);
+        }
+        if (waitNanos > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
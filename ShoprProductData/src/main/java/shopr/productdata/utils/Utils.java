@@ -3,6 +3,8 @@ package shopr.productdata.utils;
 import org.joda.time.DateTime;
 import shopr.productdata.objects.PipelineName;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
 
 /**
@@ -31,6 +33,37 @@ public class Utils
         return Constants.BESTBUY_BULK_PRODUCT_API_BASE + PropertiesLoader.getInstance().getProperty("bestbuy.apikey");
     }
 
+    /**
+     * Removes the apiKey query parameter so URLs can be used as cache keys without leaking or depending on the key.
+     */
+    public static String stripApiKey(String url)
+    {
+        return url.replaceAll("(?i)([?&])apiKey=[^&]*&?", "$1").replaceAll("[?&]$", "");
+    }
+
+    public static String toHexString(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static MessageDigest createContentDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static void insertFailureState(PipelineName pipelineName, String phase)
     {
         (new MySQLHandler()).insertFailureState(pipelineName.name(), phase, new Date(System.currentTimeMillis()));
@@ -0,0 +1,122 @@
+package shopr.productdata.utils;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import shopr.productdata.objects.PipelineName;
+import shopr.productdata.objects.ValidatorCacheEntry;
+
+import java.util.Properties;
+
+/**
+ * Created by Neil on 11/3/2016.
+ *
+ * Remembers the ETag, Last-Modified and content hash of vendor payloads per URL (API key removed) so unchanged
+ * payloads can be skipped.
+ *
+ * @author Neil Allison
+ */
+public final class ValidatorCache
+{
+    private static final String STATE_NAME = "validator-cache";
+    private static final String PENDING_PREFIX = "pending.";
+
+    private final Properties properties;
+
+    private ValidatorCache()
+    {
+        properties = LocalStateStore.getInstance().load(STATE_NAME);
+    }
+
+    private static class ValidatorCacheHolder
+    {
+        private static final ValidatorCache INSTANCE = new ValidatorCache();
+    }
+
+    public static ValidatorCache getInstance()
+    {
+        return ValidatorCacheHolder.INSTANCE;
+    }
+
+    public synchronized ValidatorCacheEntry get(String url)
+    {
+        String key = Utils.stripApiKey(url);
+        ValidatorCacheEntry entry = new ValidatorCacheEntry(properties.getProperty(key + ".eTag"),
+                properties.getProperty(key + ".lastModified"), properties.getProperty(key + ".contentHash"));
+        if (entry.getETag() == null && entry.getLastModified() == null && entry.getContentHash() == null)
+        {
+            return null;
+        }
+        return entry;
+    }
+
+    public void applyConditionalHeaders(HttpRequest request, String url)
+    {
+        ValidatorCacheEntry entry = get(url);
+        if (entry == null)
+        {
+            return;
+        }
+        if (entry.getETag() != null)
+        {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.getETag());
+        }
+        if (entry.getLastModified() != null)
+        {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.getLastModified());
+        }
+    }
+
+    public synchronized void put(String url, ValidatorCacheEntry entry)
+    {
+        setEntry(Utils.stripApiKey(url), entry);
+        LocalStateStore.getInstance().store(STATE_NAME, properties);
+    }
+
+    /**
+     * Staged validators only take effect on commit, once the pipeline has completed. Otherwise a run that failed
+     * after retrieval would make the next run skip data that never made it into the database.
+     */
+    public synchronized void stage(PipelineName pipelineName, String url, ValidatorCacheEntry entry)
+    {
+        setEntry(PENDING_PREFIX + pipelineName.name() + "." + Utils.stripApiKey(url), entry);
+        LocalStateStore.getInstance().store(STATE_NAME, properties);
+    }
+
+    public synchronized void commit(PipelineName pipelineName)
+    {
+        String prefix = PENDING_PREFIX + pipelineName.name() + ".";
+        boolean changed = false;
+        for (String key : properties.stringPropertyNames())
+        {
+            if (key.startsWith(prefix))
+            {
+                properties.setProperty(key.substring(prefix.length()), properties.getProperty(key));
+                properties.remove(key);
+                changed = true;
+            }
+        }
+        if (changed)
+        {
+            LocalStateStore.getInstance().store(STATE_NAME, properties);
+        }
+    }
+
+    private void setEntry(String key, ValidatorCacheEntry entry)
+    {
+        setOrRemove(key + ".eTag", entry.getETag());
+        setOrRemove(key + ".lastModified", entry.getLastModified());
+        setOrRemove(key + ".contentHash", entry.getContentHash());
+    }
+
+    private void setOrRemove(String key, String value)
+    {
+        if (value == null)
+        {
+            properties.remove(key);
+        }
+        else
+        {
+            properties.setProperty(key, value);
+        }
+    }
+}
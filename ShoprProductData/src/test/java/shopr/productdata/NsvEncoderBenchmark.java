@@ -0,0 +1,179 @@
+package shopr.productdata;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import shopr.productdata.objects.ShoprProductInfo;
+import shopr.productdata.objects.ShoprProductPrice;
+import shopr.productdata.utils.NsvRowEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by Neil on 11/17/2016.
+ *
+ * Times writing cleaned rows through the CsvMapper writer the sanitizers used before against NsvRowEncoder. Both
+ * write the same synthetic price and info rows to a discarding stream, so only the encoding is measured.
+ *
+ * @author Neil Allison
+ */
+public class NsvEncoderBenchmark
+{
+    private static final Logger LOGGER = Logger.getLogger(NsvEncoderBenchmark.class);
+
+    private static final String[] WORDS = {"Samsung", "4K", "Ultra", "HD", "Smart", "LED", "TV", "55\"", "Black",
+            "Wireless", "Headphones", "Noise-Cancelling", "Caf\u00e9", "Edition", "with", "Bluetooth", "Stainless",
+            "Steel", "Refrigerator", "Cu. Ft.", "Energy", "Star", "Certified", "Gr\u00f6\u00dfe", "Pack", "of", "2",
+            "\u2014", "Pro"};
+
+    private interface RowWriter
+    {
+        long write(CountingOutputStream out, List<ShoprProductPrice> prices, List<ShoprProductInfo> infos)
+                throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String usage = "Usage: java NsvEncoderBenchmark [Rows] [Iterations]";
+        int rows;
+        int iterations;
+        try
+        {
+            rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+            iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        }
+        catch (NumberFormatException e)
+        {
+            LOGGER.error(usage);
+            return;
+        }
+
+        List<ShoprProductPrice> prices = new ArrayList<>(rows);
+        List<ShoprProductInfo> infos = new ArrayList<>(rows);
+        createRows(rows, prices, infos);
+
+        CsvMapper csvMapper = new CsvMapper();
+        CsvSchema priceSchema = csvMapper.schemaFor(ShoprProductPrice.class).withColumnSeparator('\0');
+        CsvSchema infoSchema = csvMapper.schemaFor(ShoprProductInfo.class).withColumnSeparator('\0');
+        RowWriter jackson = (out, priceRows, infoRows) ->
+        {
+            try (SequenceWriter writer = csvMapper.writer(priceSchema).writeValues(new OutputStreamWriter(
+                    new BufferedOutputStream(out, 65536), StandardCharsets.UTF_8)))
+            {
+                for (ShoprProductPrice price : priceRows)
+                {
+                    writer.write(price);
+                }
+            }
+            try (SequenceWriter writer = csvMapper.writer(infoSchema).writeValues(new OutputStreamWriter(
+                    new BufferedOutputStream(out, 65536), StandardCharsets.UTF_8)))
+            {
+                for (ShoprProductInfo info : infoRows)
+                {
+                    writer.write(info);
+                }
+            }
+            return out.getByteCount();
+        };
+        RowWriter encoder = (out, priceRows, infoRows) ->
+        {
+            try (NsvRowEncoder writer = new NsvRowEncoder(out))
+            {
+                for (ShoprProductPrice price : priceRows)
+                {
+                    writer.write(price);
+                }
+            }
+            try (NsvRowEncoder writer = new NsvRowEncoder(out))
+            {
+                for (ShoprProductInfo info : infoRows)
+                {
+                    writer.write(info);
+                }
+            }
+            return out.getByteCount();
+        };
+
+        // Run each once untimed so both are compiled before they are measured
+        run("CsvMapper", jackson, prices, infos, 1, false);
+        run("NsvRowEncoder", encoder, prices, infos, 1, false);
+        double jacksonRowsPerSecond = run("CsvMapper", jackson, prices, infos, iterations, true);
+        double encoderRowsPerSecond = run("NsvRowEncoder", encoder, prices, infos, iterations, true);
+        LOGGER.info(String.format("NsvRowEncoder is %.2fx CsvMapper", encoderRowsPerSecond / jacksonRowsPerSecond));
+    }
+
+    private static double run(String name, RowWriter rowWriter, List<ShoprProductPrice> prices,
+                              List<ShoprProductInfo> infos, int iterations, boolean report) throws IOException
+    {
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            bytes += rowWriter.write(new CountingOutputStream(new NullOutputStream()), prices, infos);
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double rowsPerSecond = 2.0 * prices.size() * iterations / seconds;
+        if (report)
+        {
+            LOGGER.info(String.format("%s: %d iterations of %d row pairs in %.2f s, %.0f rows/s, %.1f MB/s", name,
+                    iterations, prices.size(), seconds, rowsPerSecond, bytes / 1048576.0 / seconds));
+        }
+        return rowsPerSecond;
+    }
+
+    private static void createRows(int rows, List<ShoprProductPrice> prices, List<ShoprProductInfo> infos)
+    {
+        Random random = new Random(rows);
+        Date ds = new Date(System.currentTimeMillis());
+        for (int i = 0; i < rows; i++)
+        {
+            String upc = String.format("%012d", Math.abs(random.nextLong()) % 1000000000000L);
+            double regularPrice = (random.nextInt(500000) + 99) / 100.0;
+
+            ShoprProductPrice price = new ShoprProductPrice();
+            price.setDs(ds);
+            price.setUpc(upc);
+            price.setRegularPrice(regularPrice);
+            price.setSalePrice(random.nextBoolean() ? regularPrice : Math.floor(regularPrice * 85) / 100.0);
+            price.setVendor("BESTBUY");
+            prices.add(price);
+
+            ShoprProductInfo info = new ShoprProductInfo();
+            info.setUpc(upc);
+            info.setName(createText(random, 4 + random.nextInt(8)));
+            info.setImage("https://img.bbystatic.com/BestBuy_US/images/products/" + upc + "_sa.jpg");
+            info.setThumbnail("https://img.bbystatic.com/BestBuy_US/images/products/" + upc + "_s.gif");
+            info.setShortDescription(createText(random, 20 + random.nextInt(30)));
+            info.setLongDescription(createText(random, 60 + random.nextInt(120)));
+            info.setCustomerReviewCount((long) random.nextInt(5000));
+            info.setCustomerReviewAverage(random.nextBoolean() ? String.valueOf(random.nextInt(41) / 10.0 + 1) : null);
+            info.setVendor("BESTBUY");
+            info.setCategoryPath(createText(random, 3).replace(' ', '/'));
+            infos.add(info);
+        }
+    }
+
+    private static String createText(Random random, int words)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++)
+        {
+            if (i > 0)
+            {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
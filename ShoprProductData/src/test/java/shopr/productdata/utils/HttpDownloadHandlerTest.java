@@ -0,0 +1,324 @@
+package shopr.productdata.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import shopr.productdata.objects.DownloadStatus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Neil on 11/21/2016.
+ *
+ * Runs downloads against a local stub server, since recorded HEAD responses do not keep Accept-Ranges.
+ *
+ * @author Neil Allison
+ */
+public class HttpDownloadHandlerTest
+{
+    private static final String ETAG = "\"v1\"";
+    private static final int MIB = 1048576;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private String url;
+    private File partialFile;
+    private File checkpointFile;
+    private File destinationFile;
+
+    private byte[] content;
+    private boolean acceptRanges;
+    private long contentRangeShift;
+    private int cutAfterBytes = -1;
+    private CountDownLatch cutLatch;
+
+    @Before
+    public void startServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/bulk.zip", this::serve);
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/bulk.zip";
+        partialFile = new File(folder.getRoot(), "bulk.zip.part");
+        checkpointFile = new File(partialFile.getAbsolutePath() + ".checkpoint");
+        destinationFile = new File(folder.getRoot(), "bulk.zip");
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void downloadsWholeFile() throws IOException
+    {
+        content = content(100000);
+
+        HttpDownloadHandler handler = new HttpDownloadHandler();
+        assertEquals(DownloadStatus.COMPLETE, handler.download(url, partialFile, destinationFile));
+
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+        assertEquals(Collections.singletonList("GET range=null if-range=null"), requests);
+        assertEquals(ETAG, handler.getETag());
+        assertFalse(partialFile.exists());
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void checkpointsWhileDownloadingAndResumesWithIfRange() throws Exception
+    {
+        content = content(20 * MIB + 12345);
+        cutAfterBytes = 18 * MIB;
+        cutLatch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<DownloadStatus> interrupted = executor.submit(() ->
+                    new HttpDownloadHandler().download(url, partialFile, destinationFile));
+            // The server holds the connection open after 18MiB, so only a checkpoint written mid stream is on disk
+            long checkpointed = awaitCheckpointBytes(16 * MIB);
+            assertTrue(String.valueOf(checkpointed), checkpointed >= 16 * MIB && checkpointed < 18 * MIB);
+            cutLatch.countDown();
+            assertEquals(DownloadStatus.FAILED, interrupted.get(30, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        assertEquals(String.valueOf(18 * MIB), readCheckpoint().getProperty("bytesReceived"));
+        assertEquals(ETAG, readCheckpoint().getProperty("eTag"));
+
+        cutAfterBytes = -1;
+        requests.clear();
+        assertEquals(DownloadStatus.COMPLETE, new HttpDownloadHandler().download(url, partialFile, destinationFile));
+
+        assertEquals(Collections.singletonList("GET range=bytes=" + 18 * MIB + "- if-range=" + ETAG), requests);
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void restartsWhenFileChangedBeforeResume() throws IOException
+    {
+        content = content(50000);
+        writePartialDownload(1000, "\"v0\"");
+
+        assertEquals(DownloadStatus.COMPLETE, new HttpDownloadHandler().download(url, partialFile, destinationFile));
+
+        assertEquals(Collections.singletonList("GET range=bytes=1000- if-range=\"v0\""), requests);
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+    }
+
+    @Test
+    public void discardsResumeWhenContentRangeDoesNotMatch() throws IOException
+    {
+        content = content(50000);
+        contentRangeShift = 1;
+        writePartialDownload(1000, ETAG);
+
+        assertEquals(DownloadStatus.FAILED, new HttpDownloadHandler().download(url, partialFile, destinationFile));
+
+        assertFalse(partialFile.exists());
+        assertFalse(checkpointFile.exists());
+        assertFalse(destinationFile.exists());
+    }
+
+    @Test
+    public void startsOverWhenCheckpointIsMissingSegment() throws IOException
+    {
+        content = content(50000);
+        writePartialDownload(1000, ETAG);
+        Properties properties = readCheckpoint();
+        properties.setProperty("segments", "2");
+        properties.setProperty("segment.0.start", "0");
+        properties.setProperty("segment.0.end", "24999");
+        properties.setProperty("segment.0.bytesReceived", "1000");
+        writeCheckpoint(properties);
+
+        assertEquals(DownloadStatus.COMPLETE, new HttpDownloadHandler().download(url, partialFile, destinationFile));
+
+        assertEquals(Collections.singletonList("GET range=null if-range=null"), requests);
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+    }
+
+    @Test
+    public void splitsIntoSegmentsWhenRangesAreAdvertised() throws IOException
+    {
+        content = content(3 * 8 * MIB + 5);
+        acceptRanges = true;
+
+        assertEquals(DownloadStatus.COMPLETE, new HttpDownloadHandler(4).download(url, partialFile, destinationFile));
+
+        // Four segments are asked for, but no segment may be smaller than 8MiB
+        assertEquals("HEAD range=null if-range=null", requests.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(
+                "GET range=bytes=0-8388608 if-range=" + ETAG,
+                "GET range=bytes=8388609-16777217 if-range=" + ETAG,
+                "GET range=bytes=16777218-25165828 if-range=" + ETAG)),
+                new HashSet<>(requests.subList(1, requests.size())));
+        assertEquals(4, requests.size());
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void usesSingleStreamWithoutAcceptRanges() throws IOException
+    {
+        content = content(3 * 8 * MIB + 5);
+
+        assertEquals(DownloadStatus.COMPLETE, new HttpDownloadHandler(4).download(url, partialFile, destinationFile));
+
+        assertEquals(Arrays.asList("HEAD range=null if-range=null", "GET range=null if-range=null"), requests);
+        assertArrayEquals(content, Files.readAllBytes(destinationFile.toPath()));
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add(exchange.getRequestMethod() + " range=" + range + " if-range=" + ifRange);
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (acceptRanges)
+        {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        }
+
+        if ("HEAD".equals(exchange.getRequestMethod()))
+        {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        int first = 0;
+        int last = content.length - 1;
+        int status = 200;
+        if (range != null && ETAG.equals(ifRange))
+        {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            first = Integer.parseInt(bounds[0]);
+            last = bounds[1].isEmpty() ? last : Integer.parseInt(bounds[1]);
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + (first + contentRangeShift) + "-" + last + "/" + content.length);
+        }
+
+        int length = last - first + 1;
+        exchange.sendResponseHeaders(status, length);
+        OutputStream os = exchange.getResponseBody();
+        try
+        {
+            if (cutAfterBytes >= 0 && cutAfterBytes < length)
+            {
+                os.write(content, first, cutAfterBytes);
+                os.flush();
+                cutLatch.await(30, TimeUnit.SECONDS);
+                // Closing short of the declared length drops the connection mid body
+                exchange.close();
+                return;
+            }
+            os.write(content, first, length);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        exchange.close();
+    }
+
+    private long awaitCheckpointBytes(long atLeast) throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (checkpointFile.exists())
+            {
+                String bytesReceived = readCheckpoint().getProperty("bytesReceived");
+                if (bytesReceived != null && Long.parseLong(bytesReceived) >= atLeast)
+                {
+                    return Long.parseLong(bytesReceived);
+                }
+            }
+            Thread.sleep(20);
+        }
+        return -1;
+    }
+
+    private void writePartialDownload(int bytesReceived, String eTag) throws IOException
+    {
+        try (OutputStream os = new FileOutputStream(partialFile))
+        {
+            os.write(content, 0, bytesReceived);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("bytesReceived", String.valueOf(bytesReceived));
+        properties.setProperty("contentLength", String.valueOf(content.length));
+        properties.setProperty("eTag", eTag);
+        writeCheckpoint(properties);
+    }
+
+    private Properties readCheckpoint() throws IOException
+    {
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(checkpointFile))
+        {
+            properties.load(is);
+        }
+        return properties;
+    }
+
+    private void writeCheckpoint(Properties properties) throws IOException
+    {
+        try (OutputStream os = new FileOutputStream(checkpointFile))
+        {
+            properties.store(os, null);
+        }
+    }
+
+    private static byte[] content(int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            bytes[i] = (byte) (i * 31 + (i >>> 11));
+        }
+        return bytes;
+    }
+}
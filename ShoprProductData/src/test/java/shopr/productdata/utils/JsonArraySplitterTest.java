@@ -0,0 +1,145 @@
+package shopr.productdata.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Neil on 11/21/2016.
+ *
+ * @author Neil Allison
+ */
+public class JsonArraySplitterTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitsIntoWholeElements() throws IOException
+    {
+        File file = write("[{\"upc\":\"1\"},{\"upc\":\"2\"}, {\"upc\":\"3\"}]");
+        List<JsonArraySplitter.Chunk> chunks = JsonArraySplitter.split(file, 1);
+
+        assertEquals(3, chunks.size());
+        assertEquals("{\"upc\":\"1\"}", text(file, chunks.get(0)));
+        assertEquals("{\"upc\":\"2\"}", text(file, chunks.get(1)));
+        assertEquals("{\"upc\":\"3\"}", text(file, chunks.get(2)));
+        assertEquals(3, readAll(file, chunks).size());
+    }
+
+    @Test
+    public void keepsElementsTogetherUntilMinChunkBytes() throws IOException
+    {
+        File file = write("[{\"upc\":\"1\"},{\"upc\":\"2\"},{\"upc\":\"3\"},{\"upc\":\"4\"}]");
+        List<JsonArraySplitter.Chunk> chunks = JsonArraySplitter.split(file, 20);
+
+        assertEquals(2, chunks.size());
+        assertEquals("{\"upc\":\"1\"},{\"upc\":\"2\"}", text(file, chunks.get(0)));
+        assertEquals(4, readAll(file, chunks).size());
+        assertEquals(1, JsonArraySplitter.split(file, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void ignoresStructuralCharactersInsideStrings() throws IOException
+    {
+        File file = write("[{\"name\":\"}{][ ,\"},{\"name\":\"{\\\"a\\\":[1]}\",\"tags\":[{\"x\":\"]\"}]}]");
+        List<JsonArraySplitter.Chunk> chunks = JsonArraySplitter.split(file, 1);
+
+        assertEquals(2, chunks.size());
+        List<JsonNode> products = readAll(file, chunks);
+        assertEquals("}{][ ,", products.get(0).get("name").asText());
+        assertEquals("{\"a\":[1]}", products.get(1).get("name").asText());
+    }
+
+    @Test
+    public void endsStringAfterEscapedBackslash() throws IOException
+    {
+        File file = write("[{\"path\":\"C:\\\\\"},{\"path\":\"\\\\\\\"}\"}]");
+        List<JsonArraySplitter.Chunk> chunks = JsonArraySplitter.split(file, 1);
+
+        assertEquals(2, chunks.size());
+        List<JsonNode> products = readAll(file, chunks);
+        assertEquals("C:\\", products.get(0).get("path").asText());
+        assertEquals("\\\"}", products.get(1).get("path").asText());
+    }
+
+    @Test
+    public void tracksEscapeAcrossScanBuffer() throws IOException
+    {
+        // Places the backslash of an escaped quote on the last byte of the first 1 MB read
+        String head = "[{\"upc\":\"1\",\"name\":\"";
+        StringBuilder json = new StringBuilder(head);
+        while (json.length() < 1048575)
+        {
+            json.append('a');
+        }
+        json.append("\\\"}{\"},{\"upc\":\"2\"}]");
+        File file = write(json.toString());
+        List<JsonArraySplitter.Chunk> chunks = JsonArraySplitter.split(file, 1);
+
+        assertEquals(2, chunks.size());
+        List<JsonNode> products = readAll(file, chunks);
+        assertTrue(products.get(0).get("name").asText().endsWith("a\"}{"));
+        assertEquals("2", products.get(1).get("upc").asText());
+    }
+
+    @Test
+    public void allowsLeadingWhitespaceAndEmptyArray() throws IOException
+    {
+        assertEquals(1, JsonArraySplitter.split(write(" \r\n\t[{\"upc\":\"1\"}]"), 1).size());
+        assertTrue(JsonArraySplitter.split(write("[ ]"), 1).isEmpty());
+    }
+
+    @Test
+    public void returnsNothingForInputThatIsNotOneArray() throws IOException
+    {
+        assertTrue(JsonArraySplitter.split(write("{\"products\":[{\"upc\":\"1\"}]}"), 1).isEmpty());
+        assertTrue(JsonArraySplitter.split(write("[{\"upc\":\"1\"},{\"upc\":\"2\""), 1).isEmpty());
+        assertTrue(JsonArraySplitter.split(write("[{\"upc\":\"]"), 1).isEmpty());
+        assertTrue(JsonArraySplitter.split(write(""), 1).isEmpty());
+    }
+
+    private File write(String json) throws IOException
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String text(File file, JsonArraySplitter.Chunk chunk) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        return new String(bytes, (int) chunk.getStart(), (int) chunk.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private static List<JsonNode> readAll(File file, List<JsonArraySplitter.Chunk> chunks) throws IOException
+    {
+        List<JsonNode> products = new ArrayList<>();
+        for (JsonArraySplitter.Chunk chunk : chunks)
+        {
+            try (InputStream is = JsonArraySplitter.openChunk(file, chunk))
+            {
+                for (JsonNode product : MAPPER.readTree(is))
+                {
+                    products.add(product);
+                }
+            }
+        }
+        return products;
+    }
+}
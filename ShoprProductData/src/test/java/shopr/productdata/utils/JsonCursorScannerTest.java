@@ -0,0 +1,111 @@
+package shopr.productdata.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Neil on 11/21/2016.
+ *
+ * @author Neil Allison
+ */
+public class JsonCursorScannerTest
+{
+    private static final String NEXT_PAGE = "/v1/paginated/items?category=3944&maxId=1234&count=1000";
+
+    @Test
+    public void findsCursorBeforeItems()
+    {
+        String json = "{\"category\":\"3944\",\"nextPage\":\"" + NEXT_PAGE.replace("/", "\\/")
+                + "\",\"items\":[{\"itemId\":1}]}";
+        JsonCursorScanner scanner = new JsonCursorScanner("nextPage");
+
+        // The scan stops at the cursor and never reaches the items
+        int cursorEnd = json.indexOf("\",\"items\"") + 1;
+        assertTrue(scanner.update(json.getBytes(StandardCharsets.UTF_8), 0, cursorEnd));
+        assertEquals(NEXT_PAGE, scanner.getValue());
+    }
+
+    @Test
+    public void findsCursorAfterItems()
+    {
+        String json = "{\"items\":[{\"itemId\":1,\"name\":\"a\"},{\"itemId\":2,\"tags\":[\"x\",{\"y\":[]}]}],"
+                + "\"nextPage\":\"" + NEXT_PAGE + "\"}";
+
+        assertEquals(NEXT_PAGE, scan(json));
+    }
+
+    @Test
+    public void readsEscapedQuotesInStrings()
+    {
+        String json = "{\"items\":[{\"name\":\"12\\\" \\\"nextPage\\\":\\\"no\\\"\"}],"
+                + "\"note\":\"a \\\"quoted\\\" \\\\\",\"nextPage\":\"a\\\"b\\\\c\\u00e9\"}";
+
+        assertEquals("a\"b\\cé", scan(json));
+    }
+
+    @Test
+    public void ignoresNestedCursorKeys()
+    {
+        String json = "{\"meta\":{\"nextPage\":\"nested\"},\"items\":[{\"nextPage\":\"item\"},[{\"nextPage\":\"deep\"}]],"
+                + "\"nextPage\":\"" + NEXT_PAGE + "\"}";
+
+        assertEquals(NEXT_PAGE, scan(json));
+    }
+
+    @Test
+    public void ignoresCursorValueThatIsNotString()
+    {
+        assertNull(scan("{\"items\":[],\"nextPage\":null,\"other\":\"x\"}"));
+        assertNull(scan("{\"nextPage\":{\"href\":\"" + NEXT_PAGE + "\"}}"));
+        assertNull(scan("{\"nextPage\":12}"));
+    }
+
+    @Test
+    public void finishesWithoutCursorAtEndOfDocument()
+    {
+        JsonCursorScanner scanner = new JsonCursorScanner("nextPage");
+        byte[] bytes = "{\"items\":[{\"itemId\":1}],\"totalPages\":1}".getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(scanner.update(bytes, 0, bytes.length - 1));
+        assertTrue(scanner.update(bytes, bytes.length - 1, 1));
+        assertNull(scanner.getValue());
+    }
+
+    @Test
+    public void findsCursorWhateverTheChunkBoundaries()
+    {
+        String json = "{\r\n \"items\" : [ {\"name\":\"café \\\"nextPage\\\"\", \"nextPage\":\"no\"} ] ,\n"
+                + "\t\"nextPage\" : \"" + NEXT_PAGE + "&q=é\\\"\" }";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+        for (int split = 0; split <= bytes.length; split++)
+        {
+            JsonCursorScanner scanner = new JsonCursorScanner("nextPage");
+            scanner.update(bytes, 0, split);
+            scanner.update(bytes, split, bytes.length - split);
+            assertTrue("split at " + split, scanner.isDone());
+            assertEquals("split at " + split, NEXT_PAGE + "&q=é\"", scanner.getValue());
+        }
+
+        JsonCursorScanner scanner = new JsonCursorScanner("nextPage");
+        for (int i = 0; i < bytes.length; i++)
+        {
+            scanner.update(bytes, i, 1);
+        }
+        assertEquals(NEXT_PAGE + "&q=é\"", scanner.getValue());
+    }
+
+    private static String scan(String json)
+    {
+        JsonCursorScanner scanner = new JsonCursorScanner("nextPage");
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        assertTrue(scanner.update(bytes, 0, bytes.length));
+        return scanner.getValue();
+    }
+}
@@ -0,0 +1,163 @@
+package shopr.productdata.utils;
+
+import org.junit.Test;
+import shopr.productdata.objects.ShoprProductInfo;
+import shopr.productdata.objects.ShoprProductPrice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created by Neil on 11/21/2016.
+ *
+ * @author Neil Allison
+ */
+public class NsvRowEncoderTest
+{
+    private static final Date DS = Date.valueOf("2016-11-21");
+
+    @Test
+    public void escapesLoadDataSpecialCharacters() throws IOException
+    {
+        ShoprProductInfo info = new ShoprProductInfo();
+        info.setUpc("1");
+        info.setName("a\\b\0c\nd\re\tf\"g'h");
+
+        assertEquals("1\0a\\\\b\\0c\\nd\\re\tf\"g'h\0\0\0\0\0\0\0\0\n", encode(info));
+    }
+
+    @Test
+    public void writesNullsAsEmptyFields() throws IOException
+    {
+        assertEquals("\0\0\0\0\0\0\0\0\0\n", encode(new ShoprProductInfo()));
+        assertEquals("\0\0\0\0\n", encode(new ShoprProductPrice()));
+    }
+
+    @Test
+    public void writesColumnsInTableOrder() throws IOException
+    {
+        ShoprProductInfo info = new ShoprProductInfo();
+        info.setUpc("upc");
+        info.setName("name");
+        info.setImage("image");
+        info.setThumbnail("thumbnail");
+        info.setShortDescription("short");
+        info.setLongDescription("long");
+        info.setCustomerReviewCount(12L);
+        info.setCustomerReviewAverage("4.5");
+        info.setVendor("BESTBUY");
+        info.setCategoryPath("a > b");
+
+        assertEquals("upc\0name\0image\0thumbnail\0short\0long\0" + "12\0" + "4.5\0BESTBUY\0a > b\n", encode(info));
+        assertEquals("2016-11-21\0" + "0123\0" + "19.99\0" + "14.5\0WALMART\n", encode(price(19.99, 14.5)));
+    }
+
+    @Test
+    public void formatsDoublesLikeDoubleToString() throws IOException
+    {
+        double[] values = {0.0, -0.0, 1.0, -5.5, 19.99, 100.1, 0.001, 0.0005, 0.1 + 0.2, 1 / 3.0, 1234567.125,
+                9999999.999, 1e7, 1.5e7, 1e-4, 123456.789, 0.015, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double value : values)
+        {
+            String row = encode(price(value, null));
+            assertEquals(String.valueOf(value), Double.toString(value), row.split("\0")[2]);
+        }
+    }
+
+    @Test
+    public void formatsLongs() throws IOException
+    {
+        for (long value : new long[]{0, 7, -42, 1000000, Long.MAX_VALUE, Long.MIN_VALUE})
+        {
+            ShoprProductInfo info = new ShoprProductInfo();
+            info.setCustomerReviewCount(value);
+            assertEquals(Long.toString(value), encode(info).split("\0")[6]);
+        }
+    }
+
+    @Test
+    public void encodesUtf8AndReplacesUnpairedSurrogates() throws IOException
+    {
+        ShoprProductInfo info = new ShoprProductInfo();
+        info.setName("é€😀");
+        info.setImage("a\ud800b\udc00");
+
+        byte[] expected = ("\0é€😀\0a?b?\0\0\0\0\0\0\0\n").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, encodeBytes(info));
+    }
+
+    @Test
+    public void writesValuesLongerThanItsBuffer() throws IOException
+    {
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 600000)
+        {
+            longValue.append("xé€😀\\\n");
+        }
+        ShoprProductInfo info = new ShoprProductInfo();
+        info.setLongDescription(longValue.toString());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NsvRowEncoder encoder = new NsvRowEncoder(out))
+        {
+            for (int i = 0; i < 20000; i++)
+            {
+                ShoprProductPrice price = price(i / 100.0, null);
+                encoder.write(price);
+                expected.write(("2016-11-21\0" + "0123\0" + Double.toString(i / 100.0) + "\0\0WALMART\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                if (i % 5000 == 0)
+                {
+                    encoder.write(info);
+                    expected.write(("\0\0\0\0\0" + longValue.toString().replace("\\", "\\\\").replace("\n", "\\n")
+                            + "\0\0\0\0\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            assertEquals(20004, encoder.getRows());
+        }
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    private static ShoprProductPrice price(Double regularPrice, Double salePrice)
+    {
+        ShoprProductPrice price = new ShoprProductPrice();
+        price.setDs(DS);
+        price.setUpc("0123");
+        price.setRegularPrice(regularPrice);
+        price.setSalePrice(salePrice);
+        price.setVendor("WALMART");
+        return price;
+    }
+
+    private static String encode(ShoprProductInfo info) throws IOException
+    {
+        return new String(encodeBytes(info), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeBytes(ShoprProductInfo info) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NsvRowEncoder encoder = new NsvRowEncoder(out))
+        {
+            encoder.write(info);
+        }
+        return out.toByteArray();
+    }
+
+    private static String encode(ShoprProductPrice price) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NsvRowEncoder encoder = new NsvRowEncoder(out))
+        {
+            encoder.write(price);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}